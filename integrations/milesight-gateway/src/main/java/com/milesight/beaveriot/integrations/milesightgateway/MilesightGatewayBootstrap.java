@@ -3,8 +3,10 @@ package com.milesight.beaveriot.integrations.milesightgateway;
 import com.milesight.beaveriot.context.integration.bootstrap.IntegrationBootstrap;
 import com.milesight.beaveriot.context.integration.model.Integration;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceModelData;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.DeviceLastSeenTracker;
 import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttClient;
 import com.milesight.beaveriot.integrations.milesightgateway.service.DeviceCodecService;
+import com.milesight.beaveriot.integrations.milesightgateway.service.GatewayRelationIndex;
 import com.milesight.beaveriot.integrations.milesightgateway.service.GatewayService;
 import com.milesight.beaveriot.integrations.milesightgateway.service.MsGwEntityService;
 import lombok.SneakyThrows;
@@ -12,6 +14,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * MilesightGatewayBootstrap class.
  *
@@ -33,6 +38,12 @@ public class MilesightGatewayBootstrap implements IntegrationBootstrap {
     @Autowired
     DeviceCodecService deviceCodecService;
 
+    @Autowired
+    GatewayRelationIndex gatewayRelationIndex;
+
+    @Autowired
+    DeviceLastSeenTracker deviceLastSeenTracker;
+
     @Override
     public void onPrepared(Integration integration) {
         // do nothing
@@ -46,7 +57,10 @@ public class MilesightGatewayBootstrap implements IntegrationBootstrap {
     @Override
     @SneakyThrows
     public void onEnabled(String tenantId, Integration integrationConfig) {
+        gatewayRelationIndex.rebuild();
+        seedDeviceStatus(tenantId);
         gatewayService.syncGatewayListToAddDeviceGatewayEuiList();
+        deviceCodecService.evictDeviceCodecIndex();
         DeviceModelData modelData = msGwEntityService.getDeviceModelData();
         // init model data
         if (deviceCodecService.isModelDataEmpty(modelData)) {
@@ -62,6 +76,22 @@ public class MilesightGatewayBootstrap implements IntegrationBootstrap {
         }
     }
 
+    private void seedDeviceStatus(String tenantId) {
+        List<String> deviceEuiList = new ArrayList<>();
+        gatewayRelationIndex.getGatewayEuiList().forEach(gatewayEui -> {
+            List<String> gatewayDevices = gatewayRelationIndex.getGatewayDevices(gatewayEui);
+            if (gatewayDevices != null) {
+                deviceEuiList.addAll(gatewayDevices);
+            }
+        });
+
+        try {
+            deviceLastSeenTracker.seed(tenantId, deviceEuiList);
+        } catch (Exception e) {
+            log.error("Seed device status error: " + e.getMessage());
+        }
+    }
+
     @Override
     public void onDestroy(Integration integration) {
         // do nothing
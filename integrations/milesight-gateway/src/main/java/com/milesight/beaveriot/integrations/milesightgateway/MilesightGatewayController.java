@@ -12,9 +12,17 @@ import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnect
 import com.milesight.beaveriot.integrations.milesightgateway.model.GatewayData;
 import com.milesight.beaveriot.integrations.milesightgateway.model.request.*;
 import com.milesight.beaveriot.integrations.milesightgateway.model.response.*;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.GatewayRequestWindow;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwUplinkPipeline;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.UplinkArchive;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.UplinkDeduplicator;
+import com.milesight.beaveriot.integrations.milesightgateway.service.CodecResourceExecutor;
 import com.milesight.beaveriot.integrations.milesightgateway.service.DeviceService;
+import com.milesight.beaveriot.integrations.milesightgateway.service.DownlinkScheduler;
+import com.milesight.beaveriot.integrations.milesightgateway.service.GatewayRelationIndex;
 import com.milesight.beaveriot.integrations.milesightgateway.service.GatewayService;
 import com.milesight.beaveriot.integrations.milesightgateway.service.MsGwEntityService;
+import com.milesight.beaveriot.integrations.milesightgateway.service.RedecodeService;
 import com.milesight.beaveriot.integrations.milesightgateway.service.SyncGatewayDeviceService;
 import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
@@ -50,12 +58,35 @@ public class MilesightGatewayController {
     @Autowired
     EntityServiceProvider entityServiceProvider;
 
+    @Autowired
+    MsGwUplinkPipeline uplinkPipeline;
+
+    @Autowired
+    UplinkDeduplicator uplinkDeduplicator;
+
+    @Autowired
+    GatewayRequestWindow gatewayRequestWindow;
+
+    @Autowired
+    GatewayRelationIndex gatewayRelationIndex;
+
+    @Autowired
+    CodecResourceExecutor codecResourceExecutor;
+
+    @Autowired
+    DownlinkScheduler downlinkScheduler;
+
+    @Autowired
+    UplinkArchive uplinkArchive;
+
+    @Autowired
+    RedecodeService redecodeService;
+
     @GetMapping("/gateways")
     public ResponseBody<GatewayListResponse> getGateways() {
         GatewayListResponse response = new GatewayListResponse();
         List<Device> gateways = gatewayService.getAllGateways();
-        Map<String, List<String>> gatewayDeviceRelation = msGwEntityService.getGatewayRelation();
-        if (ObjectUtils.isEmpty(gatewayDeviceRelation)) {
+        if (ObjectUtils.isEmpty(gateways)) {
             return ResponseBuilder.success(response);
         }
 
@@ -68,7 +99,7 @@ public class MilesightGatewayController {
             DeviceConnectStatus status = gatewayStatusMap.get(gateway.getIdentifier());
             listItem.setStatus(status == null ? DeviceConnectStatus.ONLINE : status);
 
-            List<String> deviceEuiList = gatewayDeviceRelation.get(gatewayService.getGatewayEui(gateway));
+            List<String> deviceEuiList = gatewayRelationIndex.getGatewayDevices(gatewayService.getGatewayEui(gateway));
             listItem.setDeviceCount(deviceEuiList == null ? 0 : deviceEuiList.size());
 
             listItem.setApplicationId(gatewayService.getGatewayApplicationId(gateway));
@@ -119,9 +150,8 @@ public class MilesightGatewayController {
     }
 
     @PostMapping("/gateways/{gatewayEUI}/sync-devices")
-    public ResponseBody<Void> syncGatewayDevice(@PathVariable("gatewayEUI") String eui, @RequestBody SyncGatewayDeviceRequest request) {
-        syncGatewayDeviceService.syncGatewayDevice(GatewayString.standardizeEUI(eui), request);
-        return ResponseBuilder.success();
+    public ResponseBody<SyncGatewayDeviceResponse> syncGatewayDevice(@PathVariable("gatewayEUI") String eui, @RequestBody SyncGatewayDeviceRequest request) {
+        return ResponseBuilder.success(syncGatewayDeviceService.syncGatewayDevice(GatewayString.standardizeEUI(eui), request));
     }
 
     @GetMapping("/device-models")
@@ -134,4 +164,36 @@ public class MilesightGatewayController {
 
         return ResponseBuilder.success(GatewayString.jsonInstance().convertValue(deviceModelNameEntity.getAttributes().get(AttributeBuilder.ATTRIBUTE_ENUM), new TypeReference<Map<String, String>>() {}));
     }
+
+    @PostMapping("/redecode-jobs")
+    public ResponseBody<RedecodeJobResponse> startRedecodeJob(@RequestBody RedecodeRequest request) {
+        return ResponseBuilder.success(redecodeService.startJob(request));
+    }
+
+    @GetMapping("/redecode-jobs")
+    public ResponseBody<List<RedecodeJobResponse>> getRedecodeJobs() {
+        return ResponseBuilder.success(redecodeService.getJobs());
+    }
+
+    @GetMapping("/redecode-jobs/{jobId}")
+    public ResponseBody<RedecodeJobResponse> getRedecodeJob(@PathVariable("jobId") String jobId) {
+        return ResponseBuilder.success(redecodeService.getJob(jobId));
+    }
+
+    @PostMapping("/redecode-jobs/{jobId}/cancel")
+    public ResponseBody<RedecodeJobResponse> cancelRedecodeJob(@PathVariable("jobId") String jobId) {
+        return ResponseBuilder.success(redecodeService.cancelJob(jobId));
+    }
+
+    @GetMapping("/metrics")
+    public ResponseBody<MetricsResponse> getMetrics() {
+        MetricsResponse response = new MetricsResponse();
+        response.setUplinkPipeline(uplinkPipeline.getMetrics());
+        response.getUplinkPipeline().setDuplicates(uplinkDeduplicator.getDuplicates());
+        response.setGatewayRequestWindows(gatewayRequestWindow.getMetrics());
+        response.setCodecResourceExecutor(codecResourceExecutor.getMetrics());
+        response.setDownlinkQueues(downlinkScheduler.getMetrics());
+        response.setUplinkArchive(uplinkArchive.getMetrics());
+        return ResponseBuilder.success(response);
+    }
 }
@@ -0,0 +1,47 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteArrayView class.
+ *
+ * Read-only array view of a frame for scripts. Elements are read from the buffer as unsigned bytes on access,
+ * so the frame is not copied into a script array.
+ *
+ * @author simon
+ * @date 2025/3/26
+ */
+public class ByteArrayView implements ProxyArray {
+    private final ByteBuffer buffer;
+
+    public ByteArrayView(byte[] data) {
+        this.buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public Object get(long index) {
+        if (index < 0 || index >= buffer.limit()) {
+            throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + buffer.limit());
+        }
+
+        return buffer.get((int) index) & 0xFF;
+    }
+
+    @Override
+    public void set(long index, Value value) {
+        throw new UnsupportedOperationException("Frame data is read-only");
+    }
+
+    @Override
+    public boolean remove(long index) {
+        throw new UnsupportedOperationException("Frame data is read-only");
+    }
+
+    @Override
+    public long getSize() {
+        return buffer.limit();
+    }
+}
@@ -17,6 +17,8 @@ public enum CodecErrorCode implements ErrorCodeSpec {
     CODEC_RESOURCE_INVALID_URL(HttpStatus.BAD_REQUEST.value(), "codec_resource_invalid_url", "Invalid codec resource url.", null),
     CODEC_RESOURCE_REQUEST_ERROR(HttpStatus.BAD_REQUEST.value(), "codec_resource_request_error", "Request resource error.", null),
     CODEC_RESOURCE_FORMAT_ERROR(HttpStatus.BAD_REQUEST.value(), "codec_resource_format_error", "Invalid resource format.", null),
+    CODEC_RESOURCE_BUSY(HttpStatus.SERVICE_UNAVAILABLE.value(), "codec_resource_busy", "Too many pending requests to the codec resource host.", null),
+    CODEC_SCRIPT_QUARANTINED(HttpStatus.SERVICE_UNAVAILABLE.value(), "codec_script_quarantined", "Codec script is quarantined for failing continuously.", null),
     ;
 
     private final int status;
@@ -1,17 +1,32 @@
 package com.milesight.beaveriot.integrations.milesightgateway.codec;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.milesight.beaveriot.base.exception.ServiceException;
 import lombok.SneakyThrows;
-import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
 import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.ResourceLimits;
+import org.graalvm.polyglot.Source;
 import org.graalvm.polyglot.Value;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CodecExecutor class.
  *
+ * All scripts share one polyglot engine. Scripts are parsed once per code hash and executed with pooled contexts.
+ * Each run is limited by a statement limit and cancelled by a watchdog if it runs too long.
+ *
  * @author simon
  * @date 2025/3/19
  */
@@ -27,61 +42,187 @@ public class CodecExecutor {
 
     private static final String LANGUAGE_ID = "js";
 
-    private static Context buildCodeCtx() {
-        return Context.newBuilder(LANGUAGE_ID)
-                .allowHostAccess(HOST_ACCESS)
-                .option("engine.WarnInterpreterOnly", "false")
-                .build();
+    private static final int MAX_CACHED_SCRIPTS = 256;
+
+    private static final int MAX_IDLE_CONTEXTS_PER_SCRIPT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Statements per run, including the evaluation of the script. Contexts of one engine must share the same limits.
+     */
+    private static final long STATEMENT_LIMIT = 10_000_000L;
+
+    private static final long EXECUTION_TIMEOUT_MILLIS = 3000L;
+
+    private static final int QUARANTINE_THRESHOLD = 5;
+
+    private static final long QUARANTINE_MILLIS = 5 * 60 * 1000L;
+
+    private static final ResourceLimits RESOURCE_LIMITS = ResourceLimits.newBuilder()
+            .statementLimit(STATEMENT_LIMIT, null)
+            .build();
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "msgw-codec-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Engine ENGINE = Engine.newBuilder(LANGUAGE_ID)
+            .option("engine.WarnInterpreterOnly", "false")
+            .build();
+
+    private static final Map<String, CodecScript> SCRIPT_CACHE = new ConcurrentHashMap<>();
+
+    public static String hashScript(String code) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(code.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Hash codec script error: " + e.getMessage(), e);
+        }
     }
 
-    @SneakyThrows
-    public static String runDecode(String code, Integer fPort, int[] data) {
-        try (Context context = buildCodeCtx()) {
-            context.eval(LANGUAGE_ID, code);
-            Value func = context.getBindings(LANGUAGE_ID).getMember("Decode");
-            return json.writeValueAsString(func.execute(fPort, data).as(Map.class));
+    /**
+     * Get the parsed script of the code. Scripts with the same code share the same context pool,
+     * see {@link CodecScript} for how the contexts are kept apart between devices.
+     */
+    public static CodecScript compile(String code) {
+        return compile(hashScript(code), code);
+    }
+
+    public static CodecScript compile(String hash, String code) {
+        CodecScript script = SCRIPT_CACHE.get(hash);
+        if (script != null) {
+            return script;
+        }
+
+        script = SCRIPT_CACHE.computeIfAbsent(hash, h -> new CodecScript(
+                h,
+                Source.newBuilder(LANGUAGE_ID, code, "codec-" + h + ".js").cached(true).buildLiteral(),
+                ENGINE,
+                HOST_ACCESS,
+                RESOURCE_LIMITS,
+                MAX_IDLE_CONTEXTS_PER_SCRIPT
+        ));
+        evictIfNecessary(hash);
+        return script;
+    }
+
+    private static void evictIfNecessary(String keepHash) {
+        Iterator<Map.Entry<String, CodecScript>> iterator = SCRIPT_CACHE.entrySet().iterator();
+        while (SCRIPT_CACHE.size() > MAX_CACHED_SCRIPTS && iterator.hasNext()) {
+            Map.Entry<String, CodecScript> entry = iterator.next();
+            if (entry.getKey().equals(keepHash)) {
+                continue;
+            }
+
+            // runs in flight keep their contexts, which are closed when released
+            iterator.remove();
+            entry.getValue().close();
         }
     }
 
+    public static String runDecode(String code, Integer fPort, byte[] data) {
+        return runDecode(compile(code), fPort, data);
+    }
+
+    @FunctionalInterface
+    private interface CodecRun<T> {
+        T run(CodecScript.CodecContext codecContext) throws Exception;
+    }
+
+    /**
+     * Run with a leased context under the limits. Failed or cancelled contexts are discarded.
+     */
     @SneakyThrows
+    private static <T> T execute(CodecScript script, CodecRun<T> codecRun) {
+        if (script.isQuarantined()) {
+            throw ServiceException
+                    .with(CodecErrorCode.CODEC_SCRIPT_QUARANTINED)
+                    .args(Map.of("hash", script.getHash()))
+                    .build();
+        }
+
+        CodecScript.CodecContext codecContext;
+        try {
+            codecContext = script.lease();
+        } catch (RuntimeException e) {
+            script.onFailure(e, QUARANTINE_THRESHOLD, QUARANTINE_MILLIS);
+            throw e;
+        }
+
+        boolean reusable = false;
+        codecContext.getContext().resetLimits();
+        // the evaluation of the script in a new context is covered as well, a top-level loop would be cancelled
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(codecContext::cancel, EXECUTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            script.prepare(codecContext);
+            T result = codecRun.run(codecContext);
+            script.onSuccess();
+            reusable = true;
+            return result;
+        } catch (RuntimeException e) {
+            script.onFailure(e, QUARANTINE_THRESHOLD, QUARANTINE_MILLIS);
+            throw e;
+        } finally {
+            // the context may have been cancelled right after the run finished
+            if (!watchdog.cancel(false)) {
+                reusable = false;
+            }
+            script.release(codecContext, reusable);
+        }
+    }
+
+    /**
+     * Decode the frame. The script reads the frame through a read-only view of unsigned bytes.
+     */
+    public static String runDecode(CodecScript script, Integer fPort, byte[] data) {
+        return execute(script, codecContext -> {
+            Value func = codecContext.getDecodeFunc();
+            return json.writeValueAsString(func.execute(fPort, new ByteArrayView(data)).as(Map.class));
+        });
+    }
+
     public static String runEncode(String code, Integer fPort, JsonNode data) {
-        try (Context context = buildCodeCtx()) {
-            context.eval(LANGUAGE_ID, code);
-            Value binding = context.getBindings(LANGUAGE_ID);
-            Value func = binding.getMember("Encode");
-            Integer[] encodedData = func.execute(fPort, convertToJSObject(context, data)).as(Integer[].class);
+        return runEncode(compile(code), fPort, data);
+    }
+
+    public static String runEncode(CodecScript script, Integer fPort, JsonNode data) {
+        return execute(script, codecContext -> {
+            Value func = codecContext.getEncodeFunc();
+            Integer[] encodedData = func.execute(fPort, convertToJSObject(codecContext, data)).as(Integer[].class);
             byte[] encodedBytes = new byte[encodedData.length];
             for (int i = 0; i < encodedData.length; i++) {
                 encodedBytes[i] = encodedData[i].byteValue();
             }
             return Base64.getEncoder().encodeToString(encodedBytes);
-        }
+        });
     }
 
-    private static Value convertToJSObject(Context context, JsonNode jsonNode) {
+    private static Value convertToJSObject(CodecScript.CodecContext codecContext, JsonNode jsonNode) {
         if (jsonNode.isObject()) {
-            Value jsObject = context.eval("js", "({})");
+            Value jsObject = codecContext.newObject();
             jsonNode.fieldNames().forEachRemaining(fieldName -> {
                 JsonNode fieldValue = jsonNode.get(fieldName);
-                jsObject.putMember(fieldName, convertToJSObject(context, fieldValue));
+                jsObject.putMember(fieldName, convertToJSObject(codecContext, fieldValue));
             });
             return jsObject;
         } else if (jsonNode.isArray()) {
-            Value jsArray = context.eval("js", "([])");
+            Value jsArray = codecContext.newArray();
             for (int i = 0; i < jsonNode.size(); i++) {
-                jsArray.setArrayElement(i, convertToJSObject(context, jsonNode.get(i)));
+                jsArray.setArrayElement(i, convertToJSObject(codecContext, jsonNode.get(i)));
             }
             return jsArray;
         } else if (jsonNode.isTextual()) {
-            return context.asValue(jsonNode.asText());
+            return codecContext.getContext().asValue(jsonNode.asText());
         } else if (jsonNode.isNumber()) {
-            return context.asValue(jsonNode.numberValue());
+            return codecContext.getContext().asValue(jsonNode.numberValue());
         } else if (jsonNode.isBoolean()) {
-            return context.asValue(jsonNode.asBoolean());
+            return codecContext.getContext().asValue(jsonNode.asBoolean());
         } else if (jsonNode.isNull()) {
-            return context.eval("js", "null");
+            return codecContext.getContext().asValue(null);
         } else {
-            return context.asValue(jsonNode.toString());
+            return codecContext.getContext().asValue(jsonNode.toString());
         }
     }
 }
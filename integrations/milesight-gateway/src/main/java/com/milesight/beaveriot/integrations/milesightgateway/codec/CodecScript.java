@@ -0,0 +1,307 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.ResourceLimits;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CodecScript class.
+ *
+ * A parsed codec script identified by the hash of its code, with a bounded pool of warm contexts.
+ * Every context in the pool has evaluated the script once, so a lease only pays for the function call.
+ * A script failing continuously is quarantined for a while, runs of it fail fast without a context.
+ * <p>
+ * Contexts are shared by all devices using the same script, so a context is only pooled again if the run left
+ * the globals of the script as they were after the evaluation. A run adding or reassigning a global gets its
+ * context discarded, and the next device starts from a freshly evaluated script. Changes made inside a global
+ * object are not detected, codec scripts are expected to keep no state between runs.
+ * <p>
+ * Closing the script only closes the idle contexts. Leased contexts keep running and are closed on release,
+ * the script is fully released after the last lease returns.
+ *
+ * @author simon
+ * @date 2025/3/19
+ */
+@Slf4j
+public class CodecScript {
+    @Getter
+    private final String hash;
+
+    private final Source source;
+
+    private final Engine engine;
+
+    private final HostAccess hostAccess;
+
+    private final ResourceLimits resourceLimits;
+
+    private final BlockingQueue<CodecContext> idleContexts;
+
+    private volatile boolean closed = false;
+
+    private final AtomicInteger leasedContexts = new AtomicInteger();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final AtomicLong totalFailures = new AtomicLong();
+
+    private volatile long quarantinedUntil = 0;
+
+    CodecScript(String hash, Source source, Engine engine, HostAccess hostAccess, ResourceLimits resourceLimits, int maxIdleContexts) {
+        this.hash = hash;
+        this.source = source;
+        this.engine = engine;
+        this.hostAccess = hostAccess;
+        this.resourceLimits = resourceLimits;
+        this.idleContexts = new ArrayBlockingQueue<>(maxIdleContexts);
+    }
+
+    public long getTotalFailures() {
+        return totalFailures.get();
+    }
+
+    public boolean isQuarantined() {
+        return System.currentTimeMillis() < quarantinedUntil;
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * Count the failure. The script would be quarantined if it failed too many times in a row,
+     * and quarantined again by the first failure after the quarantine.
+     */
+    void onFailure(RuntimeException e, int quarantineThreshold, long quarantineMillis) {
+        totalFailures.incrementAndGet();
+        int failures = consecutiveFailures.incrementAndGet();
+        String reason = e.getMessage();
+        if (e instanceof PolyglotException polyglotException) {
+            if (polyglotException.isResourceExhausted()) {
+                reason = "statement limit exceeded";
+            } else if (polyglotException.isCancelled()) {
+                reason = "execution timeout";
+            }
+        }
+
+        if (failures >= quarantineThreshold) {
+            quarantinedUntil = System.currentTimeMillis() + quarantineMillis;
+            log.warn("Codec script {} failed {} times in a row, quarantined for {} ms. Last error: {}", hash, failures, quarantineMillis, reason);
+        } else {
+            log.debug("Codec script {} failed: {}", hash, reason);
+        }
+    }
+
+    /**
+     * Lease an idle context, or a new one which has not evaluated the script yet.
+     * Call {@link #prepare(CodecContext)} before running, so the evaluation is covered by the watchdog of the run.
+     */
+    CodecContext lease() {
+        CodecContext codecContext = idleContexts.poll();
+        if (codecContext == null) {
+            Context context = Context.newBuilder(source.getLanguage())
+                    .engine(engine)
+                    .allowHostAccess(hostAccess)
+                    .resourceLimits(resourceLimits)
+                    .build();
+            codecContext = new CodecContext(context, source.getLanguage());
+        }
+
+        leasedContexts.incrementAndGet();
+        return codecContext;
+    }
+
+    /**
+     * Evaluate the script in a new context, pooled contexts have evaluated it already.
+     */
+    void prepare(CodecContext codecContext) {
+        codecContext.evaluate(source);
+    }
+
+    /**
+     * Give a leased context back to the pool.
+     *
+     * @param codecContext context from {@link #lease()}
+     * @param reusable false if the run failed, the context would be discarded then
+     */
+    void release(CodecContext codecContext, boolean reusable) {
+        if (leasedContexts.decrementAndGet() == 0 && closed) {
+            log.debug("Codec script {} released by its last run", hash);
+        }
+
+        if (!reusable || closed || !codecContext.isPristine() || !idleContexts.offer(codecContext)) {
+            codecContext.close();
+            return;
+        }
+
+        // closed while the context was being offered
+        if (closed) {
+            closeIdleContexts();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the idle contexts. Leased contexts are closed when they are released.
+     */
+    void close() {
+        closed = true;
+        closeIdleContexts();
+    }
+
+    private void closeIdleContexts() {
+        CodecContext codecContext;
+        while ((codecContext = idleContexts.poll()) != null) {
+            codecContext.close();
+        }
+    }
+
+    static class CodecContext {
+        @Getter
+        private final Context context;
+
+        private final Value bindings;
+
+        private Value decodeFunc;
+
+        private Value encodeFunc;
+
+        private Value objectConstructor;
+
+        private Value arrayConstructor;
+
+        private Map<String, Object> initialGlobals;
+
+        CodecContext(Context context, String languageId) {
+            this.context = context;
+            this.bindings = context.getBindings(languageId);
+        }
+
+        private void evaluate(Source source) {
+            if (initialGlobals != null) {
+                return;
+            }
+
+            context.eval(source);
+            initialGlobals = snapshotGlobals();
+        }
+
+        /**
+         * Primitive globals are kept by value, others by the guest object they refer to.
+         */
+        private Map<String, Object> snapshotGlobals() {
+            Map<String, Object> globals = new HashMap<>();
+            for (String key : bindings.getMemberKeys()) {
+                Value value = bindings.getMember(key);
+                if (value == null || value.isNull()) {
+                    globals.put(key, null);
+                } else if (value.isString()) {
+                    globals.put(key, value.asString());
+                } else if (value.isBoolean()) {
+                    globals.put(key, value.asBoolean());
+                } else if (value.isNumber() && value.fitsInDouble()) {
+                    globals.put(key, value.asDouble());
+                } else {
+                    globals.put(key, value);
+                }
+            }
+
+            return globals;
+        }
+
+        /**
+         * @return true if no global has been added, removed or reassigned since the script was evaluated
+         */
+        boolean isPristine() {
+            if (initialGlobals == null) {
+                return false;
+            }
+
+            try {
+                Map<String, Object> globals = snapshotGlobals();
+                if (globals.size() != initialGlobals.size()) {
+                    return false;
+                }
+
+                for (Map.Entry<String, Object> entry : globals.entrySet()) {
+                    if (!initialGlobals.containsKey(entry.getKey())
+                            || !Objects.equals(initialGlobals.get(entry.getKey()), entry.getValue())) {
+                        return false;
+                    }
+                }
+
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        Value getDecodeFunc() {
+            if (decodeFunc == null) {
+                decodeFunc = bindings.getMember("Decode");
+            }
+
+            return decodeFunc;
+        }
+
+        Value getEncodeFunc() {
+            if (encodeFunc == null) {
+                encodeFunc = bindings.getMember("Encode");
+            }
+
+            return encodeFunc;
+        }
+
+        Value newObject() {
+            if (objectConstructor == null) {
+                objectConstructor = bindings.getMember("Object");
+            }
+
+            return objectConstructor.newInstance();
+        }
+
+        Value newArray() {
+            if (arrayConstructor == null) {
+                arrayConstructor = bindings.getMember("Array");
+            }
+
+            return arrayConstructor.newInstance();
+        }
+
+        /**
+         * Cancel the running execution from another thread. The context could not be used anymore.
+         */
+        void cancel() {
+            try {
+                context.close(true);
+            } catch (Exception e) {
+                log.warn("Cancel codec context error: {}", e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                context.close();
+            } catch (Exception e) {
+                log.warn("Close codec context error: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * DeviceCodec class.
+ *
+ * Native codec of device models, which serves the models instead of their codec scripts.
+ * A native codec only replaces a decoder script which decodes its sample frames to the same objects, checked by
+ * {@link DeviceCodecVerifier}. Devices with an edited script, or a script of the codec repo decoding differently,
+ * keep using their script.
+ * Implementations are discovered by {@link java.util.ServiceLoader} from
+ * META-INF/services/com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodec, and must be thread-safe.
+ *
+ * @author simon
+ * @date 2025/4/4
+ */
+public interface DeviceCodec {
+    /**
+     * Device models served by this codec, in the form of "{deviceId}@{vendorId}".
+     */
+    Set<String> getModelIds();
+
+    /**
+     * Frames covering the channels decoded by this codec, and frames it stops decoding at, to be decoded by both this
+     * codec and the script to replace.
+     */
+    List<SampleFrame> getSampleFrames();
+
+    /**
+     * Decode the frame into the same object as the decoder script of the model.
+     */
+    ObjectNode decode(Integer fPort, byte[] data);
+
+    /**
+     * Encode the data into a frame.
+     *
+     * @return null if not supported, the encoder script would be used then
+     */
+    default byte[] encode(Integer fPort, JsonNode data) {
+        return null;
+    }
+
+    record SampleFrame(Integer fPort, byte[] data) {
+    }
+}
@@ -0,0 +1,96 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Base64;
+
+/**
+ * DeviceCodecHandle class.
+ *
+ * Codec of a device. The native codec of the model is preferred, and the codec script is the fallback
+ * when the model has no native codec or the native codec fails.
+ *
+ * @author simon
+ * @date 2025/4/4
+ */
+@Slf4j
+public class DeviceCodecHandle {
+    private static final ObjectMapper json = GatewayString.jsonInstance();
+
+    @Getter
+    private final String modelId;
+
+    private final DeviceCodec nativeCodec;
+
+    private final CodecScript script;
+
+    private DeviceCodecHandle(String modelId, DeviceCodec nativeCodec, CodecScript script) {
+        this.modelId = modelId;
+        this.nativeCodec = nativeCodec;
+        this.script = script;
+    }
+
+    /**
+     * @return null if there is neither a native codec nor a script
+     */
+    public static DeviceCodecHandle of(String modelId, DeviceCodec nativeCodec, CodecScript script) {
+        if (nativeCodec == null && script == null) {
+            return null;
+        }
+
+        return new DeviceCodecHandle(modelId, nativeCodec, script);
+    }
+
+    public boolean isNative() {
+        return nativeCodec != null;
+    }
+
+    @SneakyThrows
+    public String decode(Integer fPort, byte[] data) {
+        if (nativeCodec != null) {
+            try {
+                return json.writeValueAsString(nativeCodec.decode(fPort, data));
+            } catch (Exception e) {
+                if (script == null) {
+                    throw e;
+                }
+
+                log.warn("Native decoder of {} failed, fall back to script: {}", modelId, e.getMessage());
+            }
+        }
+
+        return CodecExecutor.runDecode(script, fPort, data);
+    }
+
+    /**
+     * @return encoded frame in base64, or null if nothing could encode the data
+     */
+    @SneakyThrows
+    public String encode(Integer fPort, JsonNode data) {
+        if (nativeCodec != null) {
+            try {
+                byte[] frame = nativeCodec.encode(fPort, data);
+                if (frame != null) {
+                    return Base64.getEncoder().encodeToString(frame);
+                }
+            } catch (Exception e) {
+                if (script == null) {
+                    throw e;
+                }
+
+                log.warn("Native encoder of {} failed, fall back to script: {}", modelId, e.getMessage());
+            }
+        }
+
+        return script == null ? null : CodecExecutor.runEncode(script, fPort, data);
+    }
+
+    public boolean isClosed() {
+        return script != null && script.isClosed();
+    }
+}
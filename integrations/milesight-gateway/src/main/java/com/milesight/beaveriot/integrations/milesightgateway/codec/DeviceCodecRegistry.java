@@ -0,0 +1,51 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * DeviceCodecRegistry class.
+ *
+ * Native codecs by device model, loaded once from the class path.
+ *
+ * @author simon
+ * @date 2025/4/4
+ */
+@Slf4j
+public class DeviceCodecRegistry {
+    private DeviceCodecRegistry() {}
+
+    private static final Map<String, DeviceCodec> CODECS = load();
+
+    private static Map<String, DeviceCodec> load() {
+        Map<String, DeviceCodec> codecs = new HashMap<>();
+        ServiceLoader.load(DeviceCodec.class, DeviceCodecRegistry.class.getClassLoader()).stream().forEach(provider -> {
+            try {
+                DeviceCodec codec = provider.get();
+                codec.getModelIds().forEach(modelId -> {
+                    DeviceCodec existing = codecs.putIfAbsent(modelId, codec);
+                    if (existing != null) {
+                        log.warn("Device model {} is served by {}, ignore {}", modelId, existing.getClass().getName(), codec.getClass().getName());
+                    }
+                });
+            } catch (ServiceConfigurationError e) {
+                log.warn("Load device codec failed: {}", e.getMessage());
+            }
+        });
+
+        log.info("Native device codecs loaded: {}", codecs.keySet());
+        return Map.copyOf(codecs);
+    }
+
+    public static DeviceCodec get(String modelId) {
+        return modelId == null ? null : CODECS.get(modelId);
+    }
+
+    public static boolean isEmpty() {
+        return CODECS.isEmpty();
+    }
+}
@@ -0,0 +1,73 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DeviceCodecVerifier class.
+ *
+ * Check whether a native codec could replace a decoder script, by decoding the sample frames of the codec with both.
+ * Numbers are compared by value, as the script could write 24 as 24.0. The result is kept by the model and the script
+ * hash, so a script is run for the samples once.
+ *
+ * @author simon
+ * @date 2025/4/4
+ */
+@Slf4j
+public class DeviceCodecVerifier {
+    private DeviceCodecVerifier() {}
+
+    private static final int MAX_CACHED_RESULTS = 1000;
+
+    private static final ObjectMapper json = GatewayString.jsonInstance();
+
+    private static final Comparator<JsonNode> NUMERIC_COMPARATOR = (a, b) -> {
+        if (a.isNumber() && b.isNumber()) {
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        }
+
+        return a.equals(b) ? 0 : 1;
+    };
+
+    private static final Map<String, Boolean> RESULTS = new ConcurrentHashMap<>();
+
+    public static boolean verify(String modelId, DeviceCodec nativeCodec, CodecScript script) {
+        String resultKey = modelId + ":" + script.getHash();
+        Boolean result = RESULTS.get(resultKey);
+        if (result != null) {
+            return result;
+        }
+
+        result = decodeSamples(modelId, nativeCodec, script);
+        if (RESULTS.size() >= MAX_CACHED_RESULTS) {
+            RESULTS.clear();
+        }
+        RESULTS.put(resultKey, result);
+        return result;
+    }
+
+    private static boolean decodeSamples(String modelId, DeviceCodec nativeCodec, CodecScript script) {
+        for (DeviceCodec.SampleFrame frame : nativeCodec.getSampleFrames()) {
+            try {
+                JsonNode expected = json.readTree(CodecExecutor.runDecode(script, frame.fPort(), frame.data()));
+                JsonNode actual = nativeCodec.decode(frame.fPort(), frame.data());
+                if (!expected.equals(NUMERIC_COMPARATOR, actual)) {
+                    log.info("Decoder script {} of {} decodes differently from the native codec, keep the script", script.getHash(), modelId);
+                    return false;
+                }
+            } catch (Exception e) {
+                log.info("Decoder script {} of {} could not be checked against the native codec, keep the script: {}", script.getHash(), modelId, e.getMessage());
+                return false;
+            }
+        }
+
+        log.info("Decoder script {} of {} is replaced by the native codec", script.getHash(), modelId);
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import com.milesight.beaveriot.context.integration.enums.AccessMod;
+import com.milesight.beaveriot.context.integration.enums.EntityValueType;
+import com.milesight.beaveriot.context.integration.model.Device;
+import com.milesight.beaveriot.context.integration.model.Entity;
+import com.milesight.beaveriot.context.integration.model.EntityBuilder;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.model.DeviceDefObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DeviceEntityTemplate class.
+ *
+ * Entities expanded from a device definition, independent of the device key.
+ * Compiled once per model and codec version, then bound to each device.
+ *
+ * @author simon
+ * @date 2025/3/28
+ */
+public class DeviceEntityTemplate {
+    private final List<EntityTemplate> entityTemplates;
+
+    DeviceEntityTemplate(List<EntityTemplate> entityTemplates) {
+        this.entityTemplates = entityTemplates;
+    }
+
+    record EntityTemplate(
+            String identifier,
+            String parentIdentifier,
+            String name,
+            DeviceDefObject.ACCESS_MODE accessMode,
+            EntityValueType valueType,
+            Map<String, Object> attributes
+    ) {
+        Entity build(Device device) {
+            EntityBuilder eb = new EntityBuilder(device.getIntegrationId(), device.getKey());
+            eb.identifier(identifier);
+            if (parentIdentifier != null) {
+                eb.parentIdentifier(parentIdentifier);
+            }
+
+            switch (accessMode) {
+                case R, RW -> eb.property(name, accessMode == DeviceDefObject.ACCESS_MODE.RW ? AccessMod.RW : AccessMod.R);
+                case W -> eb.service(name);
+                case NONE -> eb.event(name);
+            }
+
+            eb.valueType(valueType);
+            eb.attributes(attributes == null ? null : new HashMap<>(attributes));
+            return eb.build();
+        }
+    }
+
+    /**
+     * Build entities of the device.
+     *
+     * @return entities by key, in the order of the definition
+     */
+    public Map<String, Entity> instantiate(Device device) {
+        Map<String, Entity> entityMap = new LinkedHashMap<>();
+        entityTemplates.forEach(entityTemplate -> {
+            Entity entity = entityTemplate.build(device);
+            entityMap.put(entity.getKey(), entity);
+        });
+
+        return entityMap;
+    }
+}
@@ -9,6 +9,7 @@ import com.milesight.beaveriot.context.integration.model.Device;
 import com.milesight.beaveriot.context.integration.model.Entity;
 import com.milesight.beaveriot.context.integration.model.EntityBuilder;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.model.*;
+import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnectStatus;
 import lombok.Data;
 import org.springframework.util.StringUtils;
 
@@ -45,11 +46,17 @@ public class DeviceHelper {
     }
 
     public static UpdateResourceResult updateResourceInfo(Device device, DeviceDef deviceDef) {
+        return updateResourceInfo(device, compileEntityTemplate(deviceDef), false);
+    }
+
+    /**
+     * @param withStatusEntity add the status entity written by the device status tracker
+     */
+    public static UpdateResourceResult updateResourceInfo(Device device, DeviceEntityTemplate entityTemplate, boolean withStatusEntity) {
         UpdateResourceResult updateResourceResult = new UpdateResourceResult();
-        Map<String, Entity> entityMap = new LinkedHashMap<>();
 
         // Build Device Entity
-        buildDeviceEntityMap(entityMap, device, deviceDef);
+        Map<String, Entity> entityMap = entityTemplate.instantiate(device);
 
         // Build Additional Codec Script Entity
         if (entityMap.containsKey(ResourceConstant.DECODER_ENTITY_IDENTIFIER)) {
@@ -74,12 +81,29 @@ public class DeviceHelper {
                 .build());
         entityMap.put(ResourceConstant.ENCODER_ENTITY_IDENTIFIER, updateResourceResult.getEncoderEntity());
 
+        // online status by the last uplink
+        if (entityMap.containsKey(ResourceConstant.STATUS_ENTITY_IDENTIFIER)) {
+            throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Reserved status identifier").build();
+        }
+        if (withStatusEntity) {
+            entityMap.put(ResourceConstant.STATUS_ENTITY_IDENTIFIER, new EntityBuilder()
+                    .identifier(ResourceConstant.STATUS_ENTITY_IDENTIFIER)
+                    .property(ResourceConstant.STATUS_ENTITY_NAME, AccessMod.R)
+                    .valueType(EntityValueType.STRING)
+                    .attributes(new AttributeBuilder().enums(Arrays.stream(DeviceConnectStatus.values()).collect(Collectors.toMap(Enum::name, Enum::name))).build())
+                    .build());
+        }
+
         device.setEntities(entityMap.values().stream().toList());
         updateResourceResult.setDevice(device);
         return updateResourceResult;
     }
 
-    private static void buildDeviceEntityMap(Map<String, Entity> entityMap, Device device, DeviceDef deviceDef) {
+    /**
+     * Expand the objects of the device definition into entity templates. Devices of the same model share the template.
+     */
+    public static DeviceEntityTemplate compileEntityTemplate(DeviceDef deviceDef) {
+        List<DeviceEntityTemplate.EntityTemplate> entityTemplates = new ArrayList<>();
         Map<String, List<DeviceDefObject>> childObjectDefMap = new HashMap<>();
         Deque<ExpandedObject> objectToProcess = new ArrayDeque<>();
 
@@ -89,25 +113,18 @@ public class DeviceHelper {
         while (!objectToProcess.isEmpty()) {
             ExpandedObject eo = objectToProcess.pop();
 
-            EntityBuilder eb = new EntityBuilder(device.getIntegrationId(), device.getKey());
-            eb.identifier(eo.getIdentifier());
             String parentEntityIdentifier = eo.getParentEntityIdentifier();
-            if (parentEntityIdentifier != null) {
-                eb.parentIdentifier(parentEntityIdentifier);
-            }
-
             DeviceDefObject def = eo.getDef();
-            buildEntity(def, eb);
-            Entity entity = eb.build();
+            DeviceEntityTemplate.EntityTemplate entityTemplate = buildEntityTemplate(eo.getIdentifier(), parentEntityIdentifier, def);
 
             final boolean isStructObject = def.getDataType().equals(ObjectDataType.OBJECT);
             final boolean isArrayObject = def.getDataType().equals(ObjectDataType.ARRAY);
             if (!isStructObject && !isArrayObject) {
-                entityMap.put(entity.getKey(), entity);
+                entityTemplates.add(entityTemplate);
                 continue;
             }
 
-            String childParentEntityIdentifier = parentEntityIdentifier == null ? entity.getIdentifier() : parentEntityIdentifier;
+            String childParentEntityIdentifier = parentEntityIdentifier == null ? eo.getIdentifier() : parentEntityIdentifier;
             if (isStructObject) {
                 // struct
                 generateStructChildEO(eo, childParentEntityIdentifier, childObjectDefMap).forEach(objectToProcess::push);
@@ -120,9 +137,11 @@ public class DeviceHelper {
             }
 
             if (parentEntityIdentifier == null) {
-                entityMap.put(entity.getKey(), entity);
+                entityTemplates.add(entityTemplate);
             }
         }
+
+        return new DeviceEntityTemplate(List.copyOf(entityTemplates));
     }
 
     private static void initProcessEOList(DeviceDef deviceDef, Deque<ExpandedObject> initEOs, Map<String, List<DeviceDefObject>> childObjectDefMap) {
@@ -236,41 +255,29 @@ public class DeviceHelper {
         return childDef;
     }
 
-    private static void buildEntity(DeviceDefObject deviceDefObject, EntityBuilder eb) {
+    private static DeviceEntityTemplate.EntityTemplate buildEntityTemplate(String identifier, String parentIdentifier, DeviceDefObject deviceDefObject) {
         DeviceDefObject.ACCESS_MODE accessMode = Optional
                 .ofNullable(deviceDefObject.getAccessMode())
                 .orElse(DeviceDefObject.ACCESS_MODE.NONE);
 
-        switch (accessMode) {
-            case R, RW:
-                eb.property(deviceDefObject.getName(), accessMode == DeviceDefObject.ACCESS_MODE.RW ? AccessMod.RW : AccessMod.R);
-                break;
-            case W:
-                eb.service(deviceDefObject.getName());
-                break;
-            case NONE:
-                eb.event(deviceDefObject.getName());
-                break;
-        }
-
         // Build Value Type
-        switch (deviceDefObject.getValueType()) {
-            case STRING -> eb.valueType(EntityValueType.STRING);
-            case FLOAT -> eb.valueType(EntityValueType.DOUBLE);
-            case STRUCT -> eb.valueType(EntityValueType.OBJECT);
+        EntityValueType valueType = switch (deviceDefObject.getValueType()) {
+            case STRING -> EntityValueType.STRING;
+            case FLOAT -> EntityValueType.DOUBLE;
+            case STRUCT -> EntityValueType.OBJECT;
             default -> {
                 if (deviceDefObject.getDataType().equals(ObjectDataType.ARRAY)
                     || deviceDefObject.getDataType().equals(ObjectDataType.OBJECT)
                 ) {
-                    eb.valueType(EntityValueType.OBJECT);
+                    yield EntityValueType.OBJECT;
                 } else if (deviceDefObject.getDataType().equals(ObjectDataType.BOOL)) {
-                    eb.valueType(EntityValueType.BOOLEAN);
+                    yield EntityValueType.BOOLEAN;
                 } else {
-                    eb.valueType(EntityValueType.LONG);
+                    yield EntityValueType.LONG;
                 }
             }
             // No boolean, because so far, the enum values key is number instead of boolean.
-        }
+        };
 
         // Build enum
         AttributeBuilder ab = new AttributeBuilder();
@@ -292,6 +299,6 @@ public class DeviceHelper {
             ab.unit(deviceDefObject.getUnit());
         }
 
-        eb.attributes(ab.build());
+        return new DeviceEntityTemplate.EntityTemplate(identifier, parentIdentifier, deviceDefObject.getName(), accessMode, valueType, ab.build());
     }
 }
@@ -0,0 +1,212 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * EntityKeyPath class.
+ *
+ * Tokenized path of an entity key relative to its device key, e.g. "struct.arg4[0]#arg2#arg1".
+ * Devices of the same model share the same relative keys, so compiled paths are cached by the relative key.
+ *
+ * @author simon
+ * @date 2025/3/26
+ */
+public class EntityKeyPath {
+    private static final int MAX_CACHED_PATHS = 100000;
+
+    private static final int NOT_ARRAY = -1;
+
+    private static final Map<String, EntityKeyPath> PATH_CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * normalized path, e.g. "struct.arg4[0].arg2.arg1"
+     */
+    private final String path;
+
+    private final String[] names;
+
+    /**
+     * array index of each token, or NOT_ARRAY if the token is an object field
+     */
+    private final int[] indexes;
+
+    private EntityKeyPath(String path, String[] names, int[] indexes) {
+        this.path = path;
+        this.names = names;
+        this.indexes = indexes;
+    }
+
+    public static EntityKeyPath compile(String relativeKey) {
+        EntityKeyPath path = PATH_CACHE.get(relativeKey);
+        if (path != null) {
+            return path;
+        }
+
+        path = parse(relativeKey);
+        if (PATH_CACHE.size() >= MAX_CACHED_PATHS) {
+            PATH_CACHE.clear();
+        }
+
+        PATH_CACHE.put(relativeKey, path);
+        return path;
+    }
+
+    private static EntityKeyPath parse(String relativeKey) {
+        String path = relativeKey.replace(".[", "[").replace("#", ".");
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '.') {
+                tokens.add(path.substring(start, i));
+                start = i + 1;
+            }
+        }
+        tokens.add(path.substring(start));
+
+        // same as String.split: trailing empty tokens are removed unless the key is empty
+        if (!path.isEmpty()) {
+            while (!tokens.isEmpty() && tokens.get(tokens.size() - 1).isEmpty()) {
+                tokens.remove(tokens.size() - 1);
+            }
+        }
+
+        String[] names = new String[tokens.size()];
+        int[] indexes = new int[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (isArrayToken(token)) {
+                names[i] = token.substring(0, token.indexOf('['));
+                indexes[i] = Integer.parseInt(token.substring(token.indexOf('[') + 1, token.indexOf(']')));
+            } else {
+                names[i] = token;
+                indexes[i] = NOT_ARRAY;
+            }
+        }
+
+        return new EntityKeyPath(path, names, indexes);
+    }
+
+    /**
+     * @return true if the token ends with "[digits]"
+     */
+    private static boolean isArrayToken(String token) {
+        int last = token.length() - 1;
+        if (last < 0 || token.charAt(last) != ']') {
+            return false;
+        }
+
+        int i = last - 1;
+        while (i >= 0 && token.charAt(i) >= '0' && token.charAt(i) <= '9') {
+            i--;
+        }
+
+        return i < last - 1 && i >= 0 && token.charAt(i) == '[';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof EntityKeyPath other && path.equals(other.path));
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * Put the value into the json tree at this path, missing objects and array elements would be created.
+     */
+    public void put(ObjectNode root, JsonNode value) {
+        ObjectNode currentNode = root;
+        int last = names.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (indexes[i] == NOT_ARRAY) {
+                JsonNode node = currentNode.get(names[i]);
+                ObjectNode nextNode;
+                if (node == null) {
+                    nextNode = currentNode.objectNode();
+                    currentNode.set(names[i], nextNode);
+                } else {
+                    nextNode = (ObjectNode) node;
+                }
+                currentNode = nextNode;
+            } else {
+                ArrayNode arrayNode = getArray(currentNode, i);
+                JsonNode node = arrayNode.get(indexes[i]);
+                ObjectNode nextNode;
+                if (node == null || node.isNull()) {
+                    nextNode = currentNode.objectNode();
+                    arrayNode.set(indexes[i], nextNode);
+                } else {
+                    nextNode = (ObjectNode) node;
+                }
+                currentNode = nextNode;
+            }
+        }
+
+        if (indexes[last] == NOT_ARRAY) {
+            currentNode.set(names[last], value);
+        } else {
+            getArray(currentNode, last).set(indexes[last], value);
+        }
+    }
+
+    private ArrayNode getArray(ObjectNode currentNode, int tokenIndex) {
+        ArrayNode arrayNode = currentNode.withArray(names[tokenIndex]);
+        while (indexes[tokenIndex] >= arrayNode.size()) {
+            arrayNode.addNull();
+        }
+
+        return arrayNode;
+    }
+
+    /**
+     * Flatten the json tree into entity keys of the device.
+     * Fields of the root use "." and ".[i]", fields nested deeper use "#" and "[i]".
+     */
+    public static void flatten(String deviceKey, JsonNode node, Map<String, Object> flatMap) {
+        StringBuilder keyBuilder = new StringBuilder(deviceKey.length() + 64).append(deviceKey).append('.');
+        flatten(node, keyBuilder, keyBuilder.length(), false, flatMap);
+    }
+
+    private static void flatten(JsonNode node, StringBuilder keyBuilder, int rootLength, boolean prefixHasDot, Map<String, Object> flatMap) {
+        int prefixLength = keyBuilder.length();
+        boolean isRoot = !prefixHasDot;
+        if (node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                String fieldName = field.getKey();
+                boolean hasDot = prefixHasDot || fieldName.indexOf('.') >= 0;
+                if (prefixLength != rootLength) {
+                    keyBuilder.append(isRoot ? '.' : '#');
+                    hasDot = hasDot || isRoot;
+                }
+                keyBuilder.append(fieldName);
+                flatten(field.getValue(), keyBuilder, rootLength, hasDot, flatMap);
+                keyBuilder.setLength(prefixLength);
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                keyBuilder.append(isRoot ? ".[" : "[").append(i).append(']');
+                flatten(node.get(i), keyBuilder, rootLength, true, flatMap);
+                keyBuilder.setLength(prefixLength);
+            }
+        } else {
+            flatMap.put(keyBuilder.toString(), node);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+
+/**
+ * ResourceCache class.
+ *
+ * On-disk cache of codec repository resources. Contents are stored once by their sha-256 under "blobs",
+ * and every (url, version) pair has an index entry under "index" pointing to the blob with its validators.
+ *
+ * @author simon
+ * @date 2025/3/28
+ */
+@Slf4j
+public class ResourceCache {
+    private static final String BLOB_DIR = "blobs";
+
+    private static final String INDEX_DIR = "index";
+
+    private static final String META_BLOB = "blob";
+
+    private static final String META_ETAG = "etag";
+
+    private static final String META_LAST_MODIFIED = "last-modified";
+
+    private final Path blobDir;
+
+    private final Path indexDir;
+
+    @Getter
+    private final boolean offline;
+
+    public ResourceCache(Path dir, boolean offline) {
+        this.blobDir = dir.resolve(BLOB_DIR);
+        this.indexDir = dir.resolve(INDEX_DIR);
+        this.offline = offline;
+        try {
+            Files.createDirectories(blobDir);
+            Files.createDirectories(indexDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create codec cache directory: " + dir, e);
+        }
+    }
+
+    public record Entry(byte[] content, String etag, String lastModified, boolean immutable) {
+    }
+
+    /**
+     * @param version repository version the resource belongs to. Resources of a version never change,
+     *                so the entry of a non-null version is immutable and served without revalidation.
+     * @return cached entry, or null if absent
+     */
+    public Entry get(String url, String version) {
+        Path indexFile = indexDir.resolve(getIndexKey(url, version));
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+
+        try {
+            Properties meta = new Properties();
+            try (InputStream inputStream = Files.newInputStream(indexFile)) {
+                meta.load(inputStream);
+            }
+
+            String blobKey = meta.getProperty(META_BLOB);
+            Path blobFile = blobDir.resolve(blobKey);
+            if (!Files.exists(blobFile)) {
+                return null;
+            }
+
+            byte[] content = Files.readAllBytes(blobFile);
+            if (!blobKey.equals(sha256(content))) {
+                log.warn("Broken codec cache blob of {}, ignored", url);
+                return null;
+            }
+
+            return new Entry(content, meta.getProperty(META_ETAG), meta.getProperty(META_LAST_MODIFIED), version != null);
+        } catch (IOException e) {
+            log.warn("Read codec cache of {} failed: {}", url, e.getMessage());
+            return null;
+        }
+    }
+
+    public void put(String url, String version, byte[] content, String etag, String lastModified) {
+        try {
+            String blobKey = sha256(content);
+            Path blobFile = blobDir.resolve(blobKey);
+            if (!Files.exists(blobFile)) {
+                writeAtomically(blobFile, content);
+            }
+
+            Properties meta = new Properties();
+            meta.setProperty(META_BLOB, blobKey);
+            if (etag != null) {
+                meta.setProperty(META_ETAG, etag);
+            }
+            if (lastModified != null) {
+                meta.setProperty(META_LAST_MODIFIED, lastModified);
+            }
+
+            Path indexFile = indexDir.resolve(getIndexKey(url, version));
+            Path tmpFile = Files.createTempFile(indexDir, "index", ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(tmpFile)) {
+                meta.store(outputStream, url);
+            }
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache is only an optimization
+            log.warn("Write codec cache of {} failed: {}", url, e.getMessage());
+        }
+    }
+
+    private void writeAtomically(Path file, byte[] content) throws IOException {
+        Path tmpFile = Files.createTempFile(file.getParent(), "blob", ".tmp");
+        Files.write(tmpFile, content);
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String getIndexKey(String url, String version) {
+        return sha256((version == null ? "" : version) + "@" + url);
+    }
+
+    private static String sha256(String str) {
+        return sha256(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
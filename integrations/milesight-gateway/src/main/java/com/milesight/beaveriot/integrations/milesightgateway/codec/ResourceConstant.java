@@ -19,6 +19,10 @@ public class ResourceConstant {
 
     public static final String ENCODER_ENTITY_NAME = "Encoder";
 
+    public static final String STATUS_ENTITY_IDENTIFIER = "#status";
+
+    public static final String STATUS_ENTITY_NAME = "Status";
+
     public static final String CODEC_LEVEL_SEPARATOR = ".";
 
     public static final String CODEC_ARRAY_ITEM_IDENTIFIER = "_item";
@@ -5,20 +5,31 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.milesight.beaveriot.base.exception.ServiceException;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.model.*;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.StringUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * ResourceRequester class.
  *
+ * Resources are served from the {@link ResourceCache} if present. Resources of a known repository version are
+ * immutable, others (e.g. version.json) are revalidated with ETag / If-Modified-Since.
+ * A local directory or "file:" url could be used as the repository only if it is under the local root configured by
+ * the server, resources are never resolved to another scheme or host than the repository.
+ *
  * @author simon
  * @date 2025/2/27
  */
@@ -29,12 +40,95 @@ public class ResourceRequester {
     @Getter
     private String repoUrl = ResourceConstant.DEFAULT_DEVICE_CODEC_URI;
 
+    private final ResourceCache cache;
+
+    /**
+     * Repository version of the resources. Would be set by requestCodecVersion if absent.
+     */
+    @Getter
+    @Setter
+    private String version;
+
+    /**
+     * Local directory the "file:" repositories must be under, null if local repositories are not allowed.
+     */
+    private final Path localRoot;
+
     public ResourceRequester(String repoUrl) {
+        this(repoUrl, null);
+    }
+
+    public ResourceRequester(String repoUrl, ResourceCache cache) {
+        this(repoUrl, cache, null);
+    }
+
+    public ResourceRequester(String repoUrl, ResourceCache cache, Path localRoot) {
+        this.localRoot = localRoot == null ? null : localRoot.toAbsolutePath().normalize();
         if (StringUtils.hasText(repoUrl)) {
-            this.repoUrl = repoUrl;
+            this.repoUrl = toLocalDirectoryUrl(repoUrl);
+        }
+        this.cache = cache;
+
+        URI repoUri = toUri(this.repoUrl);
+        String scheme = repoUri.getScheme();
+        if ("file".equalsIgnoreCase(scheme)) {
+            checkLocalPath(repoUri);
+        } else if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            throw invalidUrl(this.repoUrl, "");
+        }
+    }
+
+    private String toLocalDirectoryUrl(String repoUrl) {
+        if (localRoot == null || repoUrl.contains("://") || repoUrl.startsWith("file:")) {
+            return repoUrl;
+        }
+
+        try {
+            Path path = Path.of(repoUrl);
+            return Files.isDirectory(path) ? path.toAbsolutePath().toUri().toString() : repoUrl;
+        } catch (InvalidPathException e) {
+            return repoUrl;
         }
     }
 
+    private static URI toUri(String url) {
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+            throw invalidUrl(url, "");
+        }
+    }
+
+    private static ServiceException invalidUrl(String base, String path) {
+        return ServiceException
+                .with(CodecErrorCode.CODEC_RESOURCE_INVALID_URL)
+                .args(Map.of("base", base, "path", path))
+                .build();
+    }
+
+    /**
+     * @return the path of a "file:" url, which must be under the local root
+     */
+    private Path checkLocalPath(URI uri) {
+        if (localRoot == null) {
+            log.error("Local codec repository is not allowed: " + uri);
+            throw invalidUrl(uri.toString(), "");
+        }
+
+        Path path;
+        try {
+            path = Path.of(uri).toAbsolutePath().normalize();
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            throw invalidUrl(uri.toString(), "");
+        }
+
+        if (!path.startsWith(localRoot)) {
+            log.error("Local codec repository is out of the local root: " + uri);
+            throw invalidUrl(uri.toString(), "");
+        }
+        return path;
+    }
+
     private String joinUrl(String base, String path) {
         if (!base.endsWith("/")) {
             base = base + "/";
@@ -43,30 +137,89 @@ public class ResourceRequester {
             path = path.substring(1);
         }
 
+        URI baseUri = toUri(base);
+        URI resolvedUri;
         try {
-            URI baseUri = new URI(base);
-            URI resolvedUri = baseUri.resolve(path);
-            return resolvedUri.toString();
-        } catch (URISyntaxException e) {
+            resolvedUri = baseUri.resolve(path);
+        } catch (IllegalArgumentException e) {
             log.error("Invalid Url:" + base + " + " + path);
-            throw ServiceException
-                    .with(CodecErrorCode.CODEC_RESOURCE_INVALID_URL)
-                    .args(Map.of("base", base, "path", path))
-                    .build();
+            throw invalidUrl(base, path);
+        }
+
+        // the repository could not point to resources of other hosts or local files
+        if (!Objects.equals(lowerCase(baseUri.getScheme()), lowerCase(resolvedUri.getScheme()))
+                || !Objects.equals(lowerCase(baseUri.getHost()), lowerCase(resolvedUri.getHost()))
+                || baseUri.getPort() != resolvedUri.getPort()) {
+            log.error("Resource out of the repository:" + base + " + " + path);
+            throw invalidUrl(base, path);
         }
+        return resolvedUri.toString();
     }
 
-    private InputStream getUrlInputStream(String url) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    private static String lowerCase(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    private byte[] requestResource(String requestUrl, boolean versioned) throws IOException {
+        if (requestUrl.startsWith("file:")) {
+            Path path = checkLocalPath(URI.create(requestUrl));
+            // symbolic links could not lead out of the local root either
+            if (!path.toRealPath().startsWith(localRoot.toRealPath())) {
+                throw new IOException("Resource out of the local root: " + requestUrl);
+            }
+            return Files.readAllBytes(path);
+        }
+
+        String cacheVersion = versioned ? version : null;
+        ResourceCache.Entry cached = cache == null ? null : cache.get(requestUrl, cacheVersion);
+        if (cached != null && (cached.immutable() || cache.isOffline())) {
+            return cached.content();
+        }
+
+        if (cache != null && cache.isOffline()) {
+            throw new IOException("Resource not cached in offline mode");
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(requestUrl).openConnection();
         connection.setConnectTimeout(ResourceConstant.JSON_REQUEST_CONNECTION_TIMEOUT);
         connection.setReadTimeout(ResourceConstant.JSON_REQUEST_READ_TIMEOUT);
-        return connection.getInputStream();
+        if (cached != null) {
+            if (cached.etag() != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag());
+            }
+            if (cached.lastModified() != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified());
+            }
+        }
+
+        try {
+            if (cached != null && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return cached.content();
+            }
+
+            byte[] content;
+            try (InputStream inputStream = connection.getInputStream()) {
+                content = inputStream.readAllBytes();
+            }
+
+            if (cache != null) {
+                cache.put(requestUrl, cacheVersion, content, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+            }
+            return content;
+        } catch (IOException e) {
+            if (cached != null) {
+                log.warn("Request " + requestUrl + " failed, use cached resource: " + e.getMessage());
+                return cached.content();
+            }
+
+            throw e;
+        }
     }
 
-    private <T> T requestJsonResource(String resourcePath, Class<T> clazz) {
+    private <T> T requestJsonResource(String resourcePath, Class<T> clazz, boolean versioned) {
         String requestUrl = this.joinUrl(this.repoUrl, resourcePath);
         try {
-            return json.readValue(getUrlInputStream(requestUrl), clazz);
+            return json.readValue(requestResource(requestUrl, versioned), clazz);
         } catch (JsonParseException e) {
             log.error("Json format error from " + requestUrl + " : " + e.getMessage());
             throw ServiceException
@@ -84,17 +237,8 @@ public class ResourceRequester {
 
     public String requestResourceAsString(String resourcePath) {
         String requestUrlStr = this.joinUrl(this.repoUrl, resourcePath);
-        try (
-                InputStream inputStream = getUrlInputStream(requestUrlStr);
-                ByteArrayOutputStream result = new ByteArrayOutputStream();
-        ) {
-            byte[] buffer = new byte[8192];
-            int length;
-            while ((length = inputStream.read(buffer)) != -1) {
-                result.write(buffer, 0, length);
-            }
-
-            return result.toString(StandardCharsets.UTF_8);
+        try {
+            return new String(requestResource(requestUrlStr, true), StandardCharsets.UTF_8);
         } catch (Exception e) {
             log.error("Request resource error from " + resourcePath + " : " + e.getMessage());
             throw ServiceException
@@ -105,7 +249,7 @@ public class ResourceRequester {
     }
 
     public VersionResponse requestCodecVersion() {
-        VersionResponse response = requestJsonResource(ResourceConstant.DEFAULT_DEVICE_CODEC_VERSION, VersionResponse.class);
+        VersionResponse response = requestJsonResource(ResourceConstant.DEFAULT_DEVICE_CODEC_VERSION, VersionResponse.class, false);
         if (response.getVersion() == null || response.getVendors() == null) {
             log.error("Broken remote version resource: " + response);
             throw ServiceException
@@ -113,18 +257,22 @@ public class ResourceRequester {
                     .args(Map.of("requestUrl", "version"))
                     .build();
         }
+
+        if (version == null) {
+            version = response.getVersion();
+        }
         return response;
     }
 
     public List<Vendor> requestCodecVendors(String vendorListUri) {
-        return requestJsonResource(vendorListUri, VendorResponse.class).getVendors();
+        return requestJsonResource(vendorListUri, VendorResponse.class, true).getVendors();
     }
 
     public DeviceResourceResponse requestVendorDevices(String deviceListUri) {
-        return requestJsonResource(deviceListUri, DeviceResourceResponse.class);
+        return requestJsonResource(deviceListUri, DeviceResourceResponse.class, true);
     }
 
     public DeviceDef requestDeviceDef(String deviceCodecUri) {
-        return requestJsonResource(deviceCodecUri, DeviceDef.class);
+        return requestJsonResource(deviceCodecUri, DeviceDef.class, true);
     }
 }
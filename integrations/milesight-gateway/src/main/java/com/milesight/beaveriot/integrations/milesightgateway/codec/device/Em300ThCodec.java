@@ -0,0 +1,117 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec.device;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodec;
+
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Em300ThCodec class.
+ *
+ * Native decoder of Milesight EM300-TH temperature and humidity sensors, following the channels of its decoder script.
+ * Decoding stops at the first unknown channel as the script does.
+ * Encoding is left to the encoder script.
+ *
+ * @author simon
+ * @date 2025/4/4
+ */
+public class Em300ThCodec implements DeviceCodec {
+    private static final String[] LORAWAN_CLASSES = {"Class A", "Class B", "Class C", "Class CB"};
+
+    private static final int SAMPLE_FPORT = 85;
+
+    private static final List<SampleFrame> SAMPLE_FRAMES = Stream.of(
+            // temperature and humidity
+            "0367f80004686e",
+            "0175640367100104685a",
+            // negative temperature
+            "03679cff046841",
+            "0367fa00",
+            "0367000004680001750a",
+            // device information
+            "ff0bffff0101ff166136c19146980000ff090140ff0a0114ff0f00",
+            // unknown channel
+            "0175550599aa0367fa00",
+            ""
+    ).map(hex -> new SampleFrame(SAMPLE_FPORT, HexFormat.of().parseHex(hex))).toList();
+
+    @Override
+    public Set<String> getModelIds() {
+        return Set.of("em300-th@milesight");
+    }
+
+    @Override
+    public List<SampleFrame> getSampleFrames() {
+        return SAMPLE_FRAMES;
+    }
+
+    @Override
+    public ObjectNode decode(Integer fPort, byte[] data) {
+        ObjectNode decoded = JsonNodeFactory.instance.objectNode();
+        int i = 0;
+        while (i < data.length) {
+            int channelId = data[i++] & 0xFF;
+            int channelType = data[i++] & 0xFF;
+            if (channelId == 0xFF && channelType == 0x01) {
+                int version = data[i] & 0xFF;
+                decoded.put("ipso_version", "v" + (version >> 4) + "." + (version & 0x0F));
+                i += 1;
+            } else if (channelId == 0xFF && channelType == 0x09) {
+                decoded.put("hardware_version", "v" + (data[i] & 0xFF) + "." + ((data[i + 1] & 0xFF) >> 4));
+                i += 2;
+            } else if (channelId == 0xFF && channelType == 0x0A) {
+                decoded.put("firmware_version", "v" + (data[i] & 0xFF) + "." + (data[i + 1] & 0xFF));
+                i += 2;
+            } else if (channelId == 0xFF && channelType == 0x0B) {
+                decoded.put("device_status", "on");
+                i += 1;
+            } else if (channelId == 0xFF && channelType == 0x0F) {
+                int lorawanClass = data[i] & 0xFF;
+                decoded.put("lorawan_class", lorawanClass < LORAWAN_CLASSES.length ? LORAWAN_CLASSES[lorawanClass] : "unknown");
+                i += 1;
+            } else if (channelId == 0xFF && channelType == 0x16) {
+                checkLength(data, i, 8);
+                decoded.put("sn", HexFormat.of().formatHex(data, i, i + 8));
+                i += 8;
+            } else if (channelId == 0x01 && channelType == 0x75) {
+                decoded.put("battery", data[i] & 0xFF);
+                i += 1;
+            } else if (channelId == 0x03 && channelType == 0x67) {
+                putNumber(decoded, "temperature", readInt16LE(data, i) / 10.0);
+                i += 2;
+            } else if (channelId == 0x04 && channelType == 0x68) {
+                putNumber(decoded, "humidity", (data[i] & 0xFF) / 2.0);
+                i += 1;
+            } else {
+                break;
+            }
+        }
+
+        return decoded;
+    }
+
+    private static void checkLength(byte[] data, int offset, int length) {
+        if (offset + length > data.length) {
+            throw new ArrayIndexOutOfBoundsException("Index " + (offset + length - 1) + " out of bounds for length " + data.length);
+        }
+    }
+
+    private static int readInt16LE(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8));
+    }
+
+    /**
+     * Integral values are written as integers, as script numbers are converted.
+     */
+    private static void putNumber(ObjectNode node, String field, double value) {
+        if (value == Math.rint(value) && Math.abs(value) <= Integer.MAX_VALUE) {
+            node.put(field, (int) value);
+        } else {
+            node.put(field, value);
+        }
+    }
+}
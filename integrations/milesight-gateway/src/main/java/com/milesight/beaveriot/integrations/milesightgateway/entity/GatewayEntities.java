@@ -3,6 +3,7 @@ package com.milesight.beaveriot.integrations.milesightgateway.entity;
 import com.milesight.beaveriot.context.integration.entity.annotation.Attribute;
 import com.milesight.beaveriot.context.integration.entity.annotation.DeviceTemplateEntities;
 import com.milesight.beaveriot.context.integration.entity.annotation.Entity;
+import com.milesight.beaveriot.context.integration.enums.AccessMod;
 import com.milesight.beaveriot.context.integration.model.ExchangePayload;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnectStatus;
 import lombok.Data;
@@ -20,6 +21,14 @@ import lombok.EqualsAndHashCode;
 public class GatewayEntities extends ExchangePayload {
     public static final String STATUS_KEY = "status";
 
+    public static final String DEVICE_RELATION_KEY = "device-relation";
+
     @Entity(name = "Status", identifier = STATUS_KEY, attributes = @Attribute(enumClass = DeviceConnectStatus.class))
     private String status;
+
+    /**
+     * eui list of devices attached to the gateway, the latest added device comes first
+     */
+    @Entity(name = "Device Relation", identifier = DEVICE_RELATION_KEY, accessMod = AccessMod.R, visible = false)
+    private String deviceRelation;
 }
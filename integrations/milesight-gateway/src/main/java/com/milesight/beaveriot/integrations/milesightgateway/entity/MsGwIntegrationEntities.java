@@ -46,6 +46,10 @@ public class MsGwIntegrationEntities extends ExchangePayload {
 
     public static final String GATEWAY_DEVICE_RELATION_KEY = Constants.INTEGRATION_ID + ".integration." + GATEWAY_DEVICE_RELATION_IDENTIFIER;
 
+    public static final String GATEWAY_LIST_IDENTIFIER = "gateway-list";
+
+    public static final String GATEWAY_LIST_KEY = Constants.INTEGRATION_ID + ".integration." + GATEWAY_LIST_IDENTIFIER;
+
     public static final String DEVICE_MODEL_DATA_IDENTIFIER = "device-model-data";
 
     public static final String DEVICE_MODEL_DATA_KEY = Constants.INTEGRATION_ID + ".integration." + DEVICE_MODEL_DATA_IDENTIFIER;
@@ -62,9 +66,15 @@ public class MsGwIntegrationEntities extends ExchangePayload {
     @Entity(type = EntityType.EVENT, name = "Gateway Status Event", identifier = "gateway-status-event")
     private GatewayStatusEvent gatewayStatusEvent;
 
+    /**
+     * Legacy relation of all gateways and devices. It is migrated to {@link #gatewayList} and the device relation of each gateway.
+     */
     @Entity(type = EntityType.PROPERTY, name = "Gateway Device Relation", identifier = GATEWAY_DEVICE_RELATION_IDENTIFIER, accessMod = AccessMod.R, visible = false)
     private String gatewayDeviceRelation;
 
+    @Entity(type = EntityType.PROPERTY, name = "Gateway List", identifier = GATEWAY_LIST_IDENTIFIER, accessMod = AccessMod.R, visible = false)
+    private String gatewayList;
+
     @Entity(type = EntityType.PROPERTY, name = "Device Model Data", identifier = DEVICE_MODEL_DATA_IDENTIFIER, accessMod = AccessMod.R, visible = false)
     private String deviceModelData;
 
@@ -1,5 +1,6 @@
 package com.milesight.beaveriot.integrations.milesightgateway.model;
 
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceEntityTemplate;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.model.DeviceDef;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.model.DeviceResourceInfo;
 import lombok.Data;
@@ -16,6 +17,11 @@ public class DeviceCodecData {
 
     DeviceDef def;
 
+    /**
+     * entity template compiled from def
+     */
+    DeviceEntityTemplate entityTemplate;
+
     String decoderStr;
 
     String encoderStr;
@@ -0,0 +1,91 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model;
+
+import com.milesight.beaveriot.integrations.milesightgateway.codec.model.DeviceResourceInfo;
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * DeviceCodecIndex class.
+ *
+ * Device models of one codec repo version. Resources of a version never change,
+ * so the codec data of a model is loaded once and shared until the version changes.
+ *
+ * @author simon
+ * @date 2025/3/28
+ */
+public class DeviceCodecIndex {
+    @Getter
+    private final String source;
+
+    @Getter
+    private final String version;
+
+    private final Map<String, DeviceModelData.VendorDeviceInfo> vendorDeviceInfoMap = new HashMap<>();
+
+    private final Map<String, DeviceResourceInfo> resourceInfoMap = new HashMap<>();
+
+    private final Map<String, String> modelNameToId = new HashMap<>();
+
+    private final Map<String, CompletableFuture<DeviceCodecData>> codecDataMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param vendorDevices device resources of each vendor id
+     */
+    public DeviceCodecIndex(DeviceModelData modelData, Map<String, List<DeviceResourceInfo>> vendorDevices) {
+        this.source = modelData.getSource();
+        this.version = modelData.getVersion();
+        modelData.getVendorInfoList().forEach(vendorInfo -> {
+            Map<String, DeviceResourceInfo> vendorResourceMap = new HashMap<>();
+            List<DeviceResourceInfo> resourceInfoList = vendorDevices.get(vendorInfo.getId());
+            if (resourceInfoList != null) {
+                resourceInfoList.forEach(resourceInfo -> vendorResourceMap.put(resourceInfo.getId(), resourceInfo));
+            }
+
+            vendorInfo.getDeviceInfoList().forEach(deviceInfo -> {
+                DeviceModelData.VendorDeviceInfo vendorDeviceInfo = new DeviceModelData.VendorDeviceInfo(vendorInfo, deviceInfo);
+                String modelId = DeviceModelData.getDeviceModelId(vendorDeviceInfo);
+                vendorDeviceInfoMap.put(modelId, vendorDeviceInfo);
+                modelNameToId.putIfAbsent(deviceInfo.getName(), modelId);
+                DeviceResourceInfo resourceInfo = vendorResourceMap.get(deviceInfo.getId());
+                if (resourceInfo != null) {
+                    resourceInfoMap.put(modelId, resourceInfo);
+                }
+            });
+        });
+    }
+
+    public DeviceModelData.VendorDeviceInfo getVendorDeviceInfo(String modelId) {
+        return vendorDeviceInfoMap.get(modelId);
+    }
+
+    public DeviceResourceInfo getResourceInfo(String modelId) {
+        return resourceInfoMap.get(modelId);
+    }
+
+    /**
+     * @return id of the first model with the device name, or null if not found
+     */
+    public String guessModelId(String deviceName) {
+        return modelNameToId.get(deviceName);
+    }
+
+    /**
+     * Get codec data of the model, loading it by the loader if absent. Failed loading would not be memoized.
+     */
+    public CompletableFuture<DeviceCodecData> getCodecData(String modelId, Function<String, CompletableFuture<DeviceCodecData>> loader) {
+        CompletableFuture<DeviceCodecData> future = codecDataMap.computeIfAbsent(modelId, loader);
+        future.whenComplete((codecData, e) -> {
+            if (e != null) {
+                codecDataMap.remove(modelId, future);
+            }
+        });
+
+        return future;
+    }
+}
@@ -0,0 +1,29 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model;
+
+import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListAppItem;
+import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListProfileItem;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * GatewayMetadata class.
+ *
+ * Applications and profiles of a gateway, read from the device list api.
+ *
+ * @author simon
+ * @date 2025/4/3
+ */
+@Data
+public class GatewayMetadata {
+    private List<DeviceListAppItem> appResult;
+
+    private List<DeviceListProfileItem> profileResult;
+
+    /**
+     * mqtt username of the gateway which responded
+     */
+    private String username;
+
+    private Long fetchedAt;
+}
@@ -21,6 +21,12 @@ public enum MilesightGatewayErrorCode implements ErrorCodeSpec {
     GATEWAY_NO_APPLICATION(HttpStatus.BAD_REQUEST.value(), "gateway_no_application", "Gateway must have at least one application.", null),
     GATEWAY_NO_DEVICE_PROFILE(HttpStatus.BAD_REQUEST.value(), "gateway_no_device_profile", "Gateway must have at least one device profile.", null),
     NO_VALID_PROFILE_FOR_DEVICE(HttpStatus.BAD_REQUEST.value(), "no_valid_profile_for_device", "Gateway has no valid profile for the device", null),
+    GATEWAY_OFFLINE(HttpStatus.BAD_REQUEST.value(), "gateway_offline", "Gateway is offline.", null),
+    GATEWAY_REMOVED(HttpStatus.BAD_REQUEST.value(), "gateway_removed", "Gateway has been removed.", null),
+    DOWNLINK_QUEUE_FULL(HttpStatus.TOO_MANY_REQUESTS.value(), "downlink_queue_full", "Downlink queue of the gateway is full.", null),
+    UPLINK_ARCHIVE_DISABLED(HttpStatus.BAD_REQUEST.value(), "uplink_archive_disabled", "Uplink archive is disabled.", null),
+    REDECODE_CLUSTER_UNSUPPORTED(HttpStatus.BAD_REQUEST.value(), "redecode_cluster_unsupported", "Re-decode is only supported on a single node, the uplink archive is local to each node.", null),
+    REDECODE_JOB_NOT_FOUND(HttpStatus.NOT_FOUND.value(), "redecode_job_not_found", "Re-decode job not found.", null),
     ;
 
     private final int status;
@@ -0,0 +1,25 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.request;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * RedecodeRequest class.
+ *
+ * @author simon
+ * @date 2025/4/2
+ */
+@Data
+public class RedecodeRequest {
+    private String deviceModel;
+
+    /**
+     * devices of the model to re-decode, all devices of the model if empty
+     */
+    private List<String> deviceEuis;
+
+    private Long startTime;
+
+    private Long endTime;
+}
@@ -0,0 +1,37 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * CodecResourceExecutorMetrics class.
+ *
+ * @author simon
+ * @date 2025/3/28
+ */
+@Data
+public class CodecResourceExecutorMetrics {
+    private Integer threads;
+
+    private Integer perHostLimit;
+
+    private Integer activeThreads;
+
+    private Integer queued;
+
+    private Long completed;
+
+    private List<HostMetrics> hosts;
+
+    @Data
+    public static class HostMetrics {
+        private String host;
+
+        private Integer inFlight;
+
+        private Integer queued;
+
+        private Long completed;
+    }
+}
@@ -0,0 +1,32 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+/**
+ * DownlinkQueueMetrics class.
+ *
+ * @author simon
+ * @date 2025/3/31
+ */
+@Data
+public class DownlinkQueueMetrics {
+    private String gatewayEui;
+
+    /**
+     * downlinks waiting for the rate limit
+     */
+    private Integer queued;
+
+    /**
+     * devices with downlinks in the coalescing window
+     */
+    private Integer coalescing;
+
+    private Long sent;
+
+    private Long coalesced;
+
+    private Long dropped;
+
+    private Long failed;
+}
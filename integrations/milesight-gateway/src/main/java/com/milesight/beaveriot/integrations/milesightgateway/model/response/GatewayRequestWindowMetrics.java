@@ -0,0 +1,24 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+/**
+ * GatewayRequestWindowMetrics class.
+ *
+ * @author simon
+ * @date 2025/3/27
+ */
+@Data
+public class GatewayRequestWindowMetrics {
+    private String gatewayEui;
+
+    private Integer limit;
+
+    private Integer inFlight;
+
+    private Integer queued;
+
+    private Long completed;
+
+    private Long failed;
+}
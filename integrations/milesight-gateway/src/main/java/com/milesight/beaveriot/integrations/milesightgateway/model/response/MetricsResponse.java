@@ -0,0 +1,24 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * MetricsResponse class.
+ *
+ * @author simon
+ * @date 2025/3/21
+ */
+@Data
+public class MetricsResponse {
+    private UplinkPipelineMetrics uplinkPipeline;
+
+    private List<GatewayRequestWindowMetrics> gatewayRequestWindows;
+
+    private CodecResourceExecutorMetrics codecResourceExecutor;
+
+    private List<DownlinkQueueMetrics> downlinkQueues;
+
+    private UplinkArchiveMetrics uplinkArchive;
+}
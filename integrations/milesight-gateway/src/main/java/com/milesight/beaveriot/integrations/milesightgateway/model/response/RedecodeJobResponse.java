@@ -0,0 +1,42 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+/**
+ * RedecodeJobResponse class.
+ *
+ * @author simon
+ * @date 2025/4/2
+ */
+@Data
+public class RedecodeJobResponse {
+    private String jobId;
+
+    private String status;
+
+    private String deviceModel;
+
+    private Long startTime;
+
+    private Long endTime;
+
+    private Integer totalDevices;
+
+    private Integer totalSegments;
+
+    private Integer processedSegments;
+
+    private Long scannedFrames;
+
+    private Long decodedFrames;
+
+    private Long failedFrames;
+
+    private Long savedRecords;
+
+    private Long createdAt;
+
+    private Long finishedAt;
+
+    private String error;
+}
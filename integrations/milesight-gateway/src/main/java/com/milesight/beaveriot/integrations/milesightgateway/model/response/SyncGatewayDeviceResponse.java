@@ -0,0 +1,37 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SyncGatewayDeviceResponse class.
+ *
+ * @author simon
+ * @date 2025/3/28
+ */
+@Data
+public class SyncGatewayDeviceResponse {
+    private List<String> syncedDevices = new ArrayList<>();
+
+    private List<FailedDevice> failedDevices = new ArrayList<>();
+
+    @Data
+    public static class FailedDevice {
+        private String eui;
+
+        private String reason;
+
+        public FailedDevice() {}
+
+        public FailedDevice(String eui, String reason) {
+            this.eui = eui;
+            this.reason = reason;
+        }
+    }
+
+    public void addFailedDevice(String eui, String reason) {
+        failedDevices.add(new FailedDevice(eui, reason));
+    }
+}
@@ -0,0 +1,20 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+/**
+ * UplinkArchiveMetrics class.
+ *
+ * @author simon
+ * @date 2025/4/1
+ */
+@Data
+public class UplinkArchiveMetrics {
+    private Boolean enabled;
+
+    private Integer queued;
+
+    private Long archived;
+
+    private Long dropped;
+}
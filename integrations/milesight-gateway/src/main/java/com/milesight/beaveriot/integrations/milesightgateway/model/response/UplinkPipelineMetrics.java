@@ -0,0 +1,38 @@
+package com.milesight.beaveriot.integrations.milesightgateway.model.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * UplinkPipelineMetrics class.
+ *
+ * @author simon
+ * @date 2025/3/21
+ */
+@Data
+public class UplinkPipelineMetrics {
+    private String overflowPolicy;
+
+    private Integer laneCapacity;
+
+    /**
+     * uplinks dropped as duplicates forwarded by other gateways
+     */
+    private Long duplicates;
+
+    private List<LaneMetrics> lanes;
+
+    @Data
+    public static class LaneMetrics {
+        private Integer queueDepth;
+
+        private Long processed;
+
+        private Long dropped;
+
+        private Long lastLagMillis;
+
+        private Long maxLagMillis;
+    }
+}
@@ -0,0 +1,132 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import com.milesight.beaveriot.pubsub.MessagePubSub;
+import com.milesight.beaveriot.pubsub.api.annotation.MessageListener;
+import com.milesight.beaveriot.pubsub.api.message.RemoteBroadcastMessage;
+import lombok.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ClusterNodeTracker class.
+ *
+ * Other nodes running the integration, known by their heartbeats. A node answers the first heartbeat of a new node
+ * at once, so a node started later learns about the running nodes without waiting for their next heartbeat.
+ *
+ * @author simon
+ * @date 2025/4/2
+ */
+@Component("milesightGatewayClusterNodeTracker")
+@Slf4j
+public class ClusterNodeTracker {
+    @Getter
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Autowired
+    MessagePubSub messagePubSub;
+
+    @Value("${milesight-gateway.cluster.heartbeat-millis:30000}")
+    private long heartbeatMillis;
+
+    private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+    /**
+     * last heartbeat time of other nodes by node id
+     */
+    private final Map<String, Long> nodeHeartbeats = new ConcurrentHashMap<>();
+
+    public void start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "msgw-cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sendHeartbeat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendHeartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            nodeHeartbeats.values().removeIf(lastHeartbeat -> now - lastHeartbeat > getExpireMillis());
+            messagePubSub.publishAfterCommit(NodeHeartbeatEvent.builder().nodeId(nodeId).build());
+        } catch (Exception e) {
+            log.warn("Send cluster heartbeat error: {}", e.getMessage());
+        }
+    }
+
+    private long getExpireMillis() {
+        return heartbeatMillis * 3;
+    }
+
+    /**
+     * @return this node and the other nodes which have sent a heartbeat recently
+     */
+    public Set<String> getNodeIds() {
+        long now = System.currentTimeMillis();
+        Set<String> nodeIds = new HashSet<>();
+        nodeIds.add(nodeId);
+        nodeHeartbeats.forEach((otherNodeId, lastHeartbeat) -> {
+            if (now - lastHeartbeat <= getExpireMillis()) {
+                nodeIds.add(otherNodeId);
+            }
+        });
+        return nodeIds;
+    }
+
+    /**
+     * Pick one of the running nodes by the key, nodes with the same view of the cluster pick the same node.
+     */
+    public boolean isOwner(String key) {
+        return nodeId.equals(getNodeIds().stream()
+                .max(Comparator.comparingInt((String candidate) -> (key + ":" + candidate).hashCode()).thenComparing(Comparator.naturalOrder()))
+                .orElse(nodeId));
+    }
+
+    /**
+     * Whether any other node has sent a heartbeat recently.
+     */
+    public boolean isClustered() {
+        long now = System.currentTimeMillis();
+        return nodeHeartbeats.values().stream().anyMatch(lastHeartbeat -> now - lastHeartbeat <= getExpireMillis());
+    }
+
+    @MessageListener
+    public void onNodeHeartbeat(NodeHeartbeatEvent event) {
+        if (nodeId.equals(event.getNodeId())) {
+            return;
+        }
+
+        Long previous = nodeHeartbeats.put(event.getNodeId(), System.currentTimeMillis());
+        if (previous == null && isStarted.get()) {
+            log.info("Milesight gateway node {} joined", event.getNodeId());
+            sendHeartbeat();
+        }
+    }
+
+    @Data
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class NodeHeartbeatEvent extends RemoteBroadcastMessage {
+        private String nodeId;
+    }
+}
@@ -0,0 +1,473 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import com.milesight.beaveriot.context.api.DeviceServiceProvider;
+import com.milesight.beaveriot.context.api.EntityValueServiceProvider;
+import com.milesight.beaveriot.context.constants.ExchangeContextKeys;
+import com.milesight.beaveriot.context.integration.model.Device;
+import com.milesight.beaveriot.context.integration.model.ExchangePayload;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.ResourceConstant;
+import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnectStatus;
+import com.milesight.beaveriot.integrations.milesightgateway.model.GatewayDeviceData;
+import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
+import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
+import com.milesight.beaveriot.pubsub.MessagePubSub;
+import com.milesight.beaveriot.pubsub.api.annotation.MessageListener;
+import com.milesight.beaveriot.pubsub.api.message.RemoteBroadcastMessage;
+import lombok.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * DeviceLastSeenTracker class.
+ *
+ * Online status of end devices by the time of their last uplink. Devices are kept in a hashed timing wheel, so a tick
+ * only visits the devices whose timeout may expire in it. An uplink only updates the last-seen time of an online device,
+ * and a device seen again after its deadline is moved to a later slot when its slot is visited.
+ * Only status transitions are written to the status entity of devices, in one payload per tenant and tick.
+ * <p>
+ * The wheel is owned by the tick thread. Devices stored as online are tracked from the time the tenant is enabled, so
+ * devices that went silent before a restart still time out. Other devices are tracked from their first uplink.
+ * <p>
+ * In a cluster each node receives part of the uplinks. Nodes share the last-seen time of devices with each other,
+ * at most once per share interval for a device, and only the owner node of a tenant writes its status transitions.
+ *
+ * @author simon
+ * @date 2025/4/3
+ */
+@Component
+@Slf4j
+public class DeviceLastSeenTracker {
+    private static final String STATUS_EVENT_TYPE = "DEVICE_STATUS";
+
+    @Autowired
+    DeviceServiceProvider deviceServiceProvider;
+
+    @Autowired
+    EntityValueServiceProvider entityValueServiceProvider;
+
+    @Autowired
+    MessagePubSub messagePubSub;
+
+    @Autowired
+    ClusterNodeTracker clusterNodeTracker;
+
+    @Value("${milesight-gateway.device-status.enabled:true}")
+    private boolean enabled;
+
+    @Value("${milesight-gateway.device-status.tick-millis:1000}")
+    private long tickMillis;
+
+    @Value("${milesight-gateway.device-status.wheel-size:4096}")
+    private int wheelSize;
+
+    @Value("${milesight-gateway.device-status.default-timeout-minutes:60}")
+    private long defaultTimeoutMinutes;
+
+    /**
+     * Timeouts of device models, e.g. "em300-th@milesight=30,ws101@milesight=1440".
+     */
+    @Value("${milesight-gateway.device-status.model-timeout-minutes:}")
+    private String modelTimeoutConfig;
+
+    /**
+     * Uplinks of a device are shared with other nodes at most once in this interval. It is limited to a fraction of the
+     * smallest timeout at start, so the owner of a tenant does not time out a device heard by other nodes.
+     */
+    @Value("${milesight-gateway.device-status.share-interval-millis:60000}")
+    private long shareIntervalMillis;
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    private static final int SHARE_INTERVAL_TIMEOUT_DIVISOR = 10;
+
+    private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+    private final Map<String, DeviceEntry> entryMap = new ConcurrentHashMap<>();
+
+    /**
+     * devices seen while not online, to be put into the wheel by the tick thread
+     */
+    private final Queue<DeviceEntry> seenQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * devices stored as online, to be put into the wheel by the tick thread without a transition
+     */
+    private final Queue<DeviceEntry> seededQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * last-seen time of devices to be shared with other nodes, by tenant and device eui
+     */
+    private final Map<String, Map<String, Long>> pendingShares = new ConcurrentHashMap<>();
+
+    private Map<String, Long> modelTimeoutMillis = Map.of();
+
+    private List<DeviceEntry>[] slots;
+
+    private int mask;
+
+    private long currentTick = 0;
+
+    private static class DeviceEntry {
+        private final String tenantId;
+
+        private final String deviceEui;
+
+        private volatile long lastSeen;
+
+        private volatile long sharedAt;
+
+        private volatile DeviceConnectStatus status;
+
+        private volatile boolean removed = false;
+
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+
+        /**
+         * resolved from the device model by the tick thread, 0 if not resolved yet
+         */
+        private long timeoutMillis = 0;
+
+        private long rounds = 0;
+
+        DeviceEntry(String tenantId, String deviceEui) {
+            this.tenantId = tenantId;
+            this.deviceEui = deviceEui;
+        }
+    }
+
+    private String getEntryKey(String tenantId, String deviceEui) {
+        return tenantId + ":" + deviceEui;
+    }
+
+    /**
+     * Whether devices have the status entity.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void start() {
+        if (!enabled || !isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        slots = new List[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        mask = size - 1;
+        modelTimeoutMillis = parseModelTimeouts(modelTimeoutConfig);
+        long minTimeoutMillis = modelTimeoutMillis.values().stream()
+                .reduce(TimeUnit.MINUTES.toMillis(defaultTimeoutMinutes), Math::min);
+        long maxShareIntervalMillis = minTimeoutMillis / SHARE_INTERVAL_TIMEOUT_DIVISOR;
+        if (shareIntervalMillis > maxShareIntervalMillis) {
+            log.warn("Device status share interval {} ms is too long for the timeout of {} ms, use {} ms", shareIntervalMillis, minTimeoutMillis, maxShareIntervalMillis);
+            shareIntervalMillis = maxShareIntervalMillis;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "msgw-device-status");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                runTick();
+            } catch (Exception e) {
+                log.error("Device status tick error", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        log.info("Device status tracker started: {} slots of {} ms, default timeout {} min", size, tickMillis, defaultTimeoutMinutes);
+    }
+
+    private static Map<String, Long> parseModelTimeouts(String config) {
+        if (!StringUtils.hasText(config)) {
+            return Map.of();
+        }
+
+        Map<String, Long> result = new HashMap<>();
+        for (String item : config.split(",")) {
+            String[] parts = item.split("=");
+            if (parts.length != 2) {
+                log.warn("Invalid device model timeout: {}", item);
+                continue;
+            }
+
+            result.put(parts[0].trim(), TimeUnit.MINUTES.toMillis(Long.parseLong(parts[1].trim())));
+        }
+
+        return result;
+    }
+
+    /**
+     * Record an uplink of the device.
+     */
+    public void touch(String tenantId, String deviceEui, long ts) {
+        if (!isStarted.get()) {
+            return;
+        }
+
+        DeviceEntry entry = record(tenantId, deviceEui, ts);
+        if (ts - entry.sharedAt >= shareIntervalMillis) {
+            entry.sharedAt = ts;
+            pendingShares.computeIfAbsent(tenantId, k -> new ConcurrentHashMap<>()).merge(deviceEui, ts, Math::max);
+        }
+    }
+
+    private DeviceEntry record(String tenantId, String deviceEui, long ts) {
+        DeviceEntry entry = entryMap.computeIfAbsent(getEntryKey(tenantId, deviceEui), k -> new DeviceEntry(tenantId, deviceEui));
+        if (ts > entry.lastSeen) {
+            entry.lastSeen = ts;
+        }
+
+        if (entry.status != DeviceConnectStatus.ONLINE && entry.queued.compareAndSet(false, true)) {
+            seenQueue.add(entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Track the devices of the tenant stored as online, as if they were seen now. Call in the context of the tenant.
+     */
+    public void seed(String tenantId, List<String> deviceEuiList) {
+        if (!enabled) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < deviceEuiList.size(); i += SEED_BATCH_SIZE) {
+            Map<String, String> statusKeyToEui = new HashMap<>();
+            deviceEuiList.subList(i, Math.min(i + SEED_BATCH_SIZE, deviceEuiList.size())).forEach(deviceEui ->
+                    statusKeyToEui.put(GatewayString.getDeviceEntityKey(deviceEui, ResourceConstant.STATUS_ENTITY_IDENTIFIER), deviceEui));
+            entityValueServiceProvider.findValuesByKeys(new ArrayList<>(statusKeyToEui.keySet())).forEach((statusKey, status) -> {
+                String deviceEui = statusKeyToEui.get(statusKey);
+                if (deviceEui == null || !DeviceConnectStatus.ONLINE.name().equals(status)) {
+                    return;
+                }
+
+                DeviceEntry entry = entryMap.computeIfAbsent(getEntryKey(tenantId, deviceEui), k -> new DeviceEntry(tenantId, deviceEui));
+                if (entry.lastSeen < now) {
+                    entry.lastSeen = now;
+                }
+
+                if (entry.status == null && entry.queued.compareAndSet(false, true)) {
+                    seededQueue.add(entry);
+                }
+            });
+        }
+    }
+
+    @MessageListener
+    public void onDeviceSeen(DeviceSeenEvent event) {
+        if (!isStarted.get() || clusterNodeTracker.getNodeId().equals(event.getOriginNodeId())) {
+            return;
+        }
+
+        event.getLastSeen().forEach((deviceEui, ts) -> record(event.getTenantId(), deviceEui, ts));
+    }
+
+    /**
+     * Stop tracking deleted devices.
+     */
+    public void remove(String tenantId, Collection<String> deviceEuiList) {
+        deviceEuiList.forEach(deviceEui -> {
+            DeviceEntry entry = entryMap.remove(getEntryKey(tenantId, deviceEui));
+            if (entry != null) {
+                entry.removed = true;
+            }
+        });
+    }
+
+    private void runTick() {
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Object>> transitions = new HashMap<>();
+        shareSeenDevices();
+        putSeededDevices(now);
+        putSeenDevices(now, transitions);
+
+        currentTick++;
+        int slotIndex = (int) (currentTick & mask);
+        List<DeviceEntry> expiring = slots[slotIndex];
+        if (!expiring.isEmpty()) {
+            slots[slotIndex] = new ArrayList<>();
+            for (DeviceEntry entry : expiring) {
+                if (entry.removed) {
+                    continue;
+                }
+
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                    slots[slotIndex].add(entry);
+                } else if (now - entry.lastSeen < entry.timeoutMillis) {
+                    schedule(entry, now);
+                } else {
+                    entry.status = DeviceConnectStatus.OFFLINE;
+                    // an uplink may arrive while the status is being changed
+                    if (now - entry.lastSeen < entry.timeoutMillis) {
+                        entry.status = DeviceConnectStatus.ONLINE;
+                        schedule(entry, now);
+                    } else {
+                        addTransition(transitions, entry);
+                    }
+                }
+            }
+        }
+
+        saveTransitions(transitions);
+    }
+
+    private void shareSeenDevices() {
+        if (pendingShares.isEmpty()) {
+            return;
+        }
+
+        boolean clustered = clusterNodeTracker.isClustered();
+        for (String tenantId : new ArrayList<>(pendingShares.keySet())) {
+            Map<String, Long> lastSeen = pendingShares.remove(tenantId);
+            if (!clustered || lastSeen == null || lastSeen.isEmpty()) {
+                continue;
+            }
+
+            try {
+                messagePubSub.publishAfterCommit(DeviceSeenEvent.builder()
+                        .originNodeId(clusterNodeTracker.getNodeId())
+                        .tenantId(tenantId)
+                        .lastSeen(new HashMap<>(lastSeen))
+                        .build());
+            } catch (Exception e) {
+                log.warn("Share device last-seen of tenant {} failed: {}", tenantId, e.getMessage());
+            }
+        }
+    }
+
+    private void putSeededDevices(long now) {
+        List<DeviceEntry> seededEntries = new ArrayList<>();
+        DeviceEntry entry;
+        while ((entry = seededQueue.poll()) != null) {
+            entry.queued.set(false);
+            if (!entry.removed && entry.status == null) {
+                seededEntries.add(entry);
+            }
+        }
+
+        if (seededEntries.isEmpty()) {
+            return;
+        }
+
+        resolveTimeouts(seededEntries);
+        for (DeviceEntry seededEntry : seededEntries) {
+            // stored as online already
+            seededEntry.status = DeviceConnectStatus.ONLINE;
+            schedule(seededEntry, now);
+        }
+    }
+
+    private void putSeenDevices(long now, Map<String, Map<String, Object>> transitions) {
+        List<DeviceEntry> seenEntries = new ArrayList<>();
+        DeviceEntry entry;
+        while ((entry = seenQueue.poll()) != null) {
+            entry.queued.set(false);
+            if (!entry.removed && entry.status != DeviceConnectStatus.ONLINE) {
+                seenEntries.add(entry);
+            }
+        }
+
+        if (seenEntries.isEmpty()) {
+            return;
+        }
+
+        resolveTimeouts(seenEntries);
+        for (DeviceEntry seenEntry : seenEntries) {
+            seenEntry.status = DeviceConnectStatus.ONLINE;
+            addTransition(transitions, seenEntry);
+            schedule(seenEntry, now);
+        }
+    }
+
+    /**
+     * Find the timeouts of devices by their models, one query per tenant.
+     */
+    private void resolveTimeouts(List<DeviceEntry> entries) {
+        Map<String, List<DeviceEntry>> unresolved = new HashMap<>();
+        entries.stream()
+                .filter(entry -> entry.timeoutMillis == 0)
+                .forEach(entry -> unresolved.computeIfAbsent(entry.tenantId, k -> new ArrayList<>()).add(entry));
+        unresolved.forEach((tenantId, tenantEntries) -> {
+            Map<String, String> deviceModelMap = new HashMap<>();
+            try {
+                TenantContext.setTenantId(tenantId);
+                List<Device> devices = deviceServiceProvider.findByIdentifiers(tenantEntries.stream().map(entry -> entry.deviceEui).toList(), Constants.INTEGRATION_ID);
+                devices.forEach(device -> {
+                    GatewayDeviceData deviceData = GatewayString.jsonInstance().convertValue(device.getAdditional(), GatewayDeviceData.class);
+                    if (deviceData.getDeviceModel() != null) {
+                        deviceModelMap.put(device.getIdentifier(), deviceData.getDeviceModel());
+                    }
+                });
+            } catch (Exception e) {
+                log.warn("Find device models of tenant {} failed: {}", tenantId, e.getMessage());
+            }
+
+            long defaultTimeoutMillis = TimeUnit.MINUTES.toMillis(defaultTimeoutMinutes);
+            tenantEntries.forEach(entry -> entry.timeoutMillis = modelTimeoutMillis.getOrDefault(deviceModelMap.get(entry.deviceEui), defaultTimeoutMillis));
+        });
+    }
+
+    private void schedule(DeviceEntry entry, long now) {
+        long delayTicks = Math.max(1, (entry.lastSeen + entry.timeoutMillis - now + tickMillis - 1) / tickMillis);
+        entry.rounds = (delayTicks - 1) / slots.length;
+        slots[(int) ((currentTick + delayTicks) & mask)].add(entry);
+    }
+
+    private void addTransition(Map<String, Map<String, Object>> transitions, DeviceEntry entry) {
+        transitions.computeIfAbsent(entry.tenantId, k -> new HashMap<>())
+                .put(GatewayString.getDeviceEntityKey(entry.deviceEui, ResourceConstant.STATUS_ENTITY_IDENTIFIER), entry.status.name());
+    }
+
+    private void saveTransitions(Map<String, Map<String, Object>> transitions) {
+        transitions.forEach((tenantId, values) -> {
+            if (!clusterNodeTracker.isOwner(tenantId)) {
+                // tracked here as well in case the owner leaves, but written by the owner only
+                return;
+            }
+
+            try {
+                TenantContext.setTenantId(tenantId);
+                ExchangePayload payload = ExchangePayload.create(values);
+                // devices added before the status entity was introduced do not have it until they are synced again
+                payload.putContext(ExchangeContextKeys.EXCHANGE_IGNORE_INVALID_KEY, true);
+                entityValueServiceProvider.saveValuesAndPublishAsync(payload, STATUS_EVENT_TYPE);
+                log.debug("Device status of tenant {} changed: {}", tenantId, values);
+            } catch (Exception e) {
+                log.error("Save device status of tenant {} failed: {}", tenantId, e.getMessage());
+            }
+        });
+    }
+
+    @Data
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class DeviceSeenEvent extends RemoteBroadcastMessage {
+        private String originNodeId;
+
+        private String tenantId;
+
+        /**
+         * last-seen time by device eui
+         */
+        private Map<String, Long> lastSeen;
+    }
+}
@@ -0,0 +1,235 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.GatewayRequestWindowMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * GatewayRequestWindow class.
+ *
+ * Sliding window of in-flight requests per gateway. A queued request is sent as soon as any request of the gateway
+ * completes. The window grows additively while responses are fast, and is halved on slow responses or failures.
+ * The window is halved at most once per round trip: only requests sent after the last decrease could decrease it again.
+ * <p>
+ * Requests are started on a dedicated executor, never on the thread completing a response, and the tenant of the
+ * request is only set for the time the request is being sent.
+ *
+ * @author simon
+ * @date 2025/3/27
+ */
+@Component
+@Slf4j
+public class GatewayRequestWindow {
+    @Value("${milesight-gateway.request-window.initial:3}")
+    private int initialLimit;
+
+    @Value("${milesight-gateway.request-window.min:1}")
+    private int minLimit;
+
+    @Value("${milesight-gateway.request-window.max:16}")
+    private int maxLimit;
+
+    @Value("${milesight-gateway.request-window.slow-threshold-millis:2000}")
+    private long slowThresholdMillis;
+
+    private static final AtomicInteger DRAIN_THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService DRAIN_EXECUTOR = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "msgw-request-window-" + DRAIN_THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Window> windowMap = new ConcurrentHashMap<>();
+
+    private class Window {
+        private final String tenantId;
+
+        private final String gatewayEui;
+
+        /**
+         * Queued requests, started with their send sequence.
+         */
+        private final Queue<LongConsumer> queue = new ArrayDeque<>();
+
+        private double limit = initialLimit;
+
+        private int inFlight = 0;
+
+        private long completed = 0;
+
+        private long failed = 0;
+
+        private boolean draining = false;
+
+        private long sentSeq = 0;
+
+        /**
+         * Send sequence of the latest request sent when the window was decreased.
+         */
+        private long decreasedAtSeq = 0;
+
+        Window(String tenantId, String gatewayEui) {
+            this.tenantId = tenantId;
+            this.gatewayEui = gatewayEui;
+        }
+
+        private void onComplete(long seq, long latencyMillis, boolean success) {
+            synchronized (this) {
+                inFlight--;
+                if (success) {
+                    completed++;
+                } else {
+                    failed++;
+                }
+
+                if (success && latencyMillis < slowThresholdMillis) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                } else if (seq > decreasedAtSeq) {
+                    // requests sent before the last decrease were congested already
+                    limit = Math.max(minLimit, limit / 2);
+                    decreasedAtSeq = sentSeq;
+                }
+            }
+
+            drain();
+        }
+
+        /**
+         * Start queued requests on the drain executor while the window has room. Requests completed synchronously
+         * during draining would not drain again, the running loop picks up the freed room instead.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining || inFlight >= (int) limit || queue.isEmpty()) {
+                    return;
+                }
+
+                draining = true;
+            }
+
+            DRAIN_EXECUTOR.execute(this::drainLoop);
+        }
+
+        private void drainLoop() {
+            while (true) {
+                LongConsumer next;
+                long seq;
+                synchronized (this) {
+                    if (inFlight >= (int) limit || queue.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+
+                    inFlight++;
+                    seq = ++sentSeq;
+                    next = queue.poll();
+                }
+
+                try {
+                    next.accept(seq);
+                } catch (Exception e) {
+                    log.error("Start gateway request error", e);
+                }
+            }
+        }
+    }
+
+    private String getWindowKey(String tenantId, String gatewayEui) {
+        return tenantId + ":" + gatewayEui;
+    }
+
+    /**
+     * Send the request when the window of the gateway has room.
+     *
+     * @param request sends the request and returns its response future
+     */
+    public <T> CompletableFuture<T> submit(String gatewayEui, Supplier<CompletableFuture<T>> request) {
+        return submit(TenantContext.getTenantId(), gatewayEui, request);
+    }
+
+    /**
+     * Send the request of the tenant when the window of the gateway has room.
+     * The tenant is set while the request is being sent only.
+     */
+    public <T> CompletableFuture<T> submit(String tenantId, String gatewayEui, Supplier<CompletableFuture<T>> request) {
+        Window window = windowMap.computeIfAbsent(getWindowKey(tenantId, gatewayEui), k -> new Window(tenantId, gatewayEui));
+        CompletableFuture<T> result = new CompletableFuture<>();
+        LongConsumer start = seq -> {
+            long startTime = System.currentTimeMillis();
+            CompletableFuture<T> future;
+            String previousTenantId = TenantContext.tryGetTenantId().orElse(null);
+            try {
+                TenantContext.setTenantId(tenantId);
+                future = request.get();
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            } finally {
+                restoreTenant(previousTenantId);
+            }
+
+            future.whenComplete((response, e) -> {
+                window.onComplete(seq, System.currentTimeMillis() - startTime, e == null);
+                if (e != null) {
+                    result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                } else {
+                    result.complete(response);
+                }
+            });
+        };
+
+        synchronized (window) {
+            window.queue.add(start);
+        }
+
+        window.drain();
+        return result;
+    }
+
+    private static void restoreTenant(String tenantId) {
+        if (tenantId == null) {
+            TenantContext.clear();
+        } else {
+            TenantContext.setTenantId(tenantId);
+        }
+    }
+
+    public void remove(String tenantId, String gatewayEui) {
+        windowMap.remove(getWindowKey(tenantId, gatewayEui));
+    }
+
+    public List<GatewayRequestWindowMetrics> getMetrics() {
+        String tenantId = TenantContext.getTenantId();
+        List<GatewayRequestWindowMetrics> metricsList = new ArrayList<>();
+        windowMap.values().stream().filter(window -> window.tenantId.equals(tenantId)).forEach(window -> {
+            GatewayRequestWindowMetrics metrics = new GatewayRequestWindowMetrics();
+            synchronized (window) {
+                metrics.setGatewayEui(window.gatewayEui);
+                metrics.setLimit((int) window.limit);
+                metrics.setInFlight(window.inFlight);
+                metrics.setQueued(window.queue.size());
+                metrics.setCompleted(window.completed);
+                metrics.setFailed(window.failed);
+            }
+            metricsList.add(metrics);
+        });
+
+        return metricsList;
+    }
+}
@@ -0,0 +1,125 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnectStatus;
+import com.milesight.beaveriot.pubsub.MessagePubSub;
+import com.milesight.beaveriot.pubsub.api.annotation.MessageListener;
+import com.milesight.beaveriot.pubsub.api.message.RemoteBroadcastMessage;
+import lombok.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GatewayStatusTracker class.
+ *
+ * Local last-seen and status table of gateways. Uplinks and responses of an online gateway only touch this table,
+ * the persisted status would be checked under a distributed lock only when the status may change.
+ *
+ * @author simon
+ * @date 2025/3/24
+ */
+@Component
+public class GatewayStatusTracker {
+    /**
+     * Confirmed status would be trusted within this period, then be checked against the persisted status again.
+     */
+    private static final long STATUS_CONFIRM_PERIOD_MILLIS = 60 * 1000L;
+
+    @Autowired
+    MessagePubSub messagePubSub;
+
+    private final Map<String, GatewayLiveness> livenessMap = new ConcurrentHashMap<>();
+
+    public static class GatewayLiveness {
+        @Getter
+        private volatile DeviceConnectStatus status;
+
+        @Getter
+        private volatile long lastSeen;
+
+        private volatile long confirmedAt;
+    }
+
+    private String getLivenessKey(String tenantId, String gatewayEui) {
+        return tenantId + ":" + gatewayEui;
+    }
+
+    public GatewayLiveness get(String tenantId, String gatewayEui) {
+        return livenessMap.get(getLivenessKey(tenantId, gatewayEui));
+    }
+
+    /**
+     * Whether the gateway is not known to be offline and has sent anything within the period.
+     */
+    public boolean isSeenWithin(String tenantId, String gatewayEui, long periodMillis) {
+        GatewayLiveness liveness = get(tenantId, gatewayEui);
+        return liveness != null
+                && liveness.status != DeviceConnectStatus.OFFLINE
+                && System.currentTimeMillis() - liveness.lastSeen <= periodMillis;
+    }
+
+    public boolean isOffline(String tenantId, String gatewayEui) {
+        GatewayLiveness liveness = get(tenantId, gatewayEui);
+        return liveness != null && liveness.status == DeviceConnectStatus.OFFLINE;
+    }
+
+    /**
+     * Record that the gateway was seen with the status.
+     *
+     * @return true if the status is known to be unchanged, so the persisted status does not need to be checked.
+     */
+    public boolean touch(String tenantId, String gatewayEui, DeviceConnectStatus status, long ts) {
+        GatewayLiveness liveness = livenessMap.computeIfAbsent(getLivenessKey(tenantId, gatewayEui), k -> new GatewayLiveness());
+        if (status == DeviceConnectStatus.ONLINE && ts > liveness.lastSeen) {
+            liveness.lastSeen = ts;
+        }
+
+        return status == liveness.status && System.currentTimeMillis() - liveness.confirmedAt < STATUS_CONFIRM_PERIOD_MILLIS;
+    }
+
+    /**
+     * Record the status which has been checked against or written to the persisted status.
+     */
+    public void confirm(String tenantId, String gatewayEui, DeviceConnectStatus status) {
+        GatewayLiveness liveness = livenessMap.computeIfAbsent(getLivenessKey(tenantId, gatewayEui), k -> new GatewayLiveness());
+        liveness.status = status;
+        liveness.confirmedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Confirm the status locally and notify other nodes about the status transition.
+     */
+    public void publishTransition(String tenantId, String gatewayEui, DeviceConnectStatus status) {
+        confirm(tenantId, gatewayEui, status);
+        messagePubSub.publishAfterCommit(GatewayStatusChangeEvent.builder()
+                .tenantId(tenantId)
+                .gatewayEui(gatewayEui)
+                .status(status)
+                .build());
+    }
+
+    public void remove(String tenantId, String gatewayEui) {
+        livenessMap.remove(getLivenessKey(tenantId, gatewayEui));
+    }
+
+    @MessageListener
+    public void onGatewayStatusChange(GatewayStatusChangeEvent event) {
+        confirm(event.getTenantId(), event.getGatewayEui(), event.getStatus());
+    }
+
+    @Data
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class GatewayStatusChangeEvent extends RemoteBroadcastMessage {
+        private String tenantId;
+
+        private String gatewayEui;
+
+        private DeviceConnectStatus status;
+    }
+}
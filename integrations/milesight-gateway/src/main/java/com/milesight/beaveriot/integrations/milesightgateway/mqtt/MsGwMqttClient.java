@@ -1,7 +1,9 @@
 package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.milesight.beaveriot.base.annotations.shedlock.LockScope;
 import com.milesight.beaveriot.base.enums.ErrorCode;
 import com.milesight.beaveriot.base.exception.ServiceException;
@@ -15,7 +17,8 @@ import com.milesight.beaveriot.context.mqtt.enums.MqttQos;
 import com.milesight.beaveriot.context.mqtt.model.MqttConnectEvent;
 import com.milesight.beaveriot.context.mqtt.model.MqttDisconnectEvent;
 import com.milesight.beaveriot.context.mqtt.model.MqttMessage;
-import com.milesight.beaveriot.integrations.milesightgateway.codec.CodecExecutor;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodecHandle;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.EntityValueConverter;
 import com.milesight.beaveriot.integrations.milesightgateway.entity.MsGwIntegrationEntities;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnectStatus;
@@ -28,11 +31,10 @@ import lombok.extern.slf4j.Slf4j;
 import net.javacrumbs.shedlock.core.LockProvider;
 import net.javacrumbs.shedlock.core.SimpleLock;
 import net.javacrumbs.shedlock.spring.aop.ScopedLockConfiguration;
-import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
@@ -59,8 +61,6 @@ public class MsGwMqttClient {
 
     private static final Integer REQUEST_TIMEOUT_SECONDS = 8;
 
-    public static final Integer GATEWAY_REQUEST_BATCH_SIZE = 3;
-
     @Autowired
     EntityValueServiceProvider entityValueServiceProvider;
 
@@ -74,52 +74,97 @@ public class MsGwMqttClient {
     DeviceServiceProvider deviceServiceProvider;
 
     @Autowired
-    TaskExecutor taskExecutor;
+    LockProvider lockProvider;
 
     @Autowired
-    LockProvider lockProvider;
+    MsGwUplinkPipeline uplinkPipeline;
+
+    @Autowired
+    UplinkDeduplicator uplinkDeduplicator;
+
+    @Autowired
+    UplinkArchive uplinkArchive;
+
+    @Autowired
+    DeviceLastSeenTracker deviceLastSeenTracker;
+
+    @Autowired
+    GatewayStatusTracker gatewayStatusTracker;
+
+    @Autowired
+    GatewayRequestWindow requestWindow;
+
+    @Autowired
+    ClusterNodeTracker clusterNodeTracker;
 
     private final Map<String, CompletableFuture<MqttRawResponse>> pendingRequests = new ConcurrentHashMap<>();
 
     private final ObjectMapper json = GatewayString.jsonInstance();
 
+    private final ObjectReader rawResponseReader = json.readerFor(MqttRawResponse.class);
+
+    /**
+     * readers of response bodies, the java type of each class is resolved once
+     */
+    private final Map<Class<?>, ObjectReader> bodyReaders = new ConcurrentHashMap<>();
+
     public void init() {
         if (!isInit.compareAndSet(false, true)) {
             return;
         }
 
+        clusterNodeTracker.start();
+        uplinkPipeline.start();
+        uplinkArchive.start();
+        deviceLastSeenTracker.start();
         mqttServiceProvider.subscribe(getMqttTopic("+", Constants.GATEWAY_MQTT_UPLINK_SCOPE), (MqttMessage message) -> {
-            this.onDataUplink(parseGatewayIdFromTopic(message.getTopicSubPath()), new String(message.getPayload(), StandardCharsets.UTF_8));
+            this.onDataUplink(parseGatewayIdFromTopic(message.getTopicSubPath()), message.getPayload());
         }, true);
 
         mqttServiceProvider.subscribe(getMqttTopic("+", Constants.GATEWAY_MQTT_RESPONSE_SCOPE), (MqttMessage message) -> {
-            this.onResponse(parseGatewayIdFromTopic(message.getTopicSubPath()), new String(message.getPayload(), StandardCharsets.UTF_8), message);
+            this.onResponse(parseGatewayIdFromTopic(message.getTopicSubPath()), message.getPayload(), message);
         }, false);
 
         mqttServiceProvider.onConnect(this::onGatewayConnect);
         mqttServiceProvider.onDisconnect(this::onGatewayDisconnect);
     }
 
-    private void onDataUplink(String gatewayEui, String message) {
-        log.debug("{} uplink: {}", gatewayEui, message);
+    private void onDataUplink(String gatewayEui, byte[] message) {
+        if (log.isDebugEnabled()) {
+            log.debug("{} uplink: {}", gatewayEui, new String(message, StandardCharsets.UTF_8));
+        }
+
         try {
             MqttUplinkData uplinkData = json.readValue(message, MqttUplinkData.class);
             String deviceEui = GatewayString.standardizeEUI(uplinkData.getDevEUI());
+            // one receive time per frame, the archived frame and its history record share it
+            long receivedAt = System.currentTimeMillis();
+            deviceLastSeenTracker.touch(TenantContext.getTenantId(), deviceEui, receivedAt);
+            // the same frame may be forwarded by several gateways
+            if (uplinkDeduplicator.isDuplicate(TenantContext.getTenantId(), deviceEui, uplinkData.getFCnt(), uplinkData.getData(), receivedAt)) {
+                log.debug("Drop duplicated uplink of {} from {}: fCnt {}", deviceEui, gatewayEui, uplinkData.getFCnt());
+            } else {
+                uplinkArchive.append(TenantContext.getTenantId(), new UplinkArchive.Record(receivedAt, deviceEui, uplinkData.getFPort(), uplinkData.getFCnt(), uplinkData.getData()));
+                uplinkPipeline.dispatch(deviceEui, () -> processUplink(deviceEui, uplinkData, receivedAt));
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+
+        updateGatewayStatus(gatewayEui, DeviceConnectStatus.ONLINE, System.currentTimeMillis());
+    }
 
+    private void processUplink(String deviceEui, MqttUplinkData uplinkData, long receivedAt) {
+        try {
             // decode uplink data
-            String decoderScript = msGwEntityService.getDeviceDecoderScript(deviceEui);
-            if (!StringUtils.hasText(decoderScript)) {
+            DeviceCodecHandle decoder = msGwEntityService.getDeviceDecoder(deviceEui);
+            if (decoder == null) {
                 log.warn("Decode Script not found: " + deviceEui);
                 return;
             }
 
-            byte[] binData = Base64.getDecoder().decode(uplinkData.getData());
-            int[] intArray = new int[binData.length];
-            for (int i = 0; i < binData.length; i++) {
-                intArray[i] = binData[i] & 0xFF;
-            }
-
-            String decodeResult = CodecExecutor.runDecode(decoderScript, uplinkData.getFPort(), intArray);
+            byte[] binData = uplinkData.getData() == null ? new byte[0] : uplinkData.getData();
+            String decodeResult = decoder.decode(uplinkData.getFPort(), binData);
             log.debug("decoded {}", decodeResult);
 
             // save uplink data to entity
@@ -130,18 +175,22 @@ public class MsGwMqttClient {
                 return;
             }
 
-            entityValueServiceProvider.saveValuesAndPublishAsync(ExchangePayload.create(entityValueMap), "DEVICE_UPLINK");
+            ExchangePayload payload = ExchangePayload.create(entityValueMap);
+            payload.setTimestamp(receivedAt);
+            entityValueServiceProvider.saveValuesAndPublishAsync(payload, "DEVICE_UPLINK");
         } catch (JsonProcessingException e) {
             log.error(e.getMessage());
         }
-
-        updateGatewayStatus(gatewayEui, DeviceConnectStatus.ONLINE, System.currentTimeMillis());
     }
 
-    private void onResponse(String gatewayEui, String message, MqttMessage mqttMessage) {
-        log.debug("{} response: {}", gatewayEui, message);
+    private void onResponse(String gatewayEui, byte[] message, MqttMessage mqttMessage) {
+        if (log.isDebugEnabled()) {
+            log.debug("{} response: {}", gatewayEui, new String(message, StandardCharsets.UTF_8));
+        }
+
         try {
-            MqttRawResponse rawResponse = json.readValue(message, MqttRawResponse.class);
+            // the body is kept as a json tree and bound to the response type by the requester
+            MqttRawResponse rawResponse = rawResponseReader.readValue(message);
             rawResponse.getCtx().setUsername(mqttMessage.getUsername());
             CompletableFuture<MqttRawResponse> request = pendingRequests.get(rawResponse.getId());
             if (request == null) {
@@ -175,6 +224,11 @@ public class MsGwMqttClient {
     }
 
     private void updateGatewayStatus(String eui, DeviceConnectStatus status, Long ts) {
+        String tenantId = TenantContext.getTenantId();
+        if (gatewayStatusTracker.touch(tenantId, eui, status, ts)) {
+            return;
+        }
+
         SimpleLock lock = lockProvider.lock(ScopedLockConfiguration.builder(LockScope.TENANT)
                 .name(LockConstants.UPDATE_GATEWAY_STATUS_LOCK_PREFIX + ":" + eui)
                 .lockAtMostFor(Duration.ofSeconds(5))
@@ -193,11 +247,13 @@ public class MsGwMqttClient {
             }
 
             if (status.equals(curStatus)) {
+                gatewayStatusTracker.confirm(tenantId, eui, curStatus);
                 return;
             }
 
             Device gateway = deviceServiceProvider.findByIdentifier(identifier, Constants.INTEGRATION_ID);
             if (gateway == null) {
+                gatewayStatusTracker.remove(tenantId, eui);
                 return;
             }
 
@@ -210,6 +266,7 @@ public class MsGwMqttClient {
                     MsGwIntegrationEntities.GatewayStatusEvent::getEui, eui,
                     MsGwIntegrationEntities.GatewayStatusEvent::getStatusTimestamp, ts
             )).publishAsync();
+            gatewayStatusTracker.publishTransition(tenantId, eui, status);
         } finally {
             lock.unlock();
         }
@@ -233,56 +290,97 @@ public class MsGwMqttClient {
     }
 
     public <T> MqttResponse<T> request(String gatewayEui, MqttRequest req, Class<T> responseType) {
+        return MsGwMqttUtil.join(requestAsync(gatewayEui, req, responseType));
+    }
+
+    /**
+     * Send the request to the gateway without waiting for the response.
+     * Requests are sent through the request window of the gateway, so only a limited number of them are in flight.
+     * The future fails with GATEWAY_REQUEST_TIMEOUT if the gateway does not respond in time,
+     * the timeout is driven by the shared delay scheduler of CompletableFuture rather than a blocked thread.
+     */
+    public <T> CompletableFuture<MqttResponse<T>> requestAsync(String gatewayEui, MqttRequest req, Class<T> responseType) {
+        return requestAsync(TenantContext.getTenantId(), gatewayEui, req, responseType);
+    }
+
+    /**
+     * Send the request of the tenant, for callers running outside the tenant context such as future callbacks.
+     */
+    public <T> CompletableFuture<MqttResponse<T>> requestAsync(String tenantId, String gatewayEui, MqttRequest req, Class<T> responseType) {
+        return requestWindow.submit(tenantId, gatewayEui, () -> sendRequest(gatewayEui, req, responseType));
+    }
+
+    private <T> CompletableFuture<MqttResponse<T>> sendRequest(String gatewayEui, MqttRequest req, Class<T> responseType) {
         log.trace("request {}", req);
 
         CompletableFuture<MqttRawResponse> pendingRequest = new CompletableFuture<>();
         pendingRequests.put(req.getId(), pendingRequest);
 
-        final MqttResponse<T> response = new MqttResponse<>();
         final String gatewayTopic = getMqttTopic(gatewayEui, Constants.GATEWAY_MQTT_REQUEST_SCOPE);
         try {
             mqttPublish(gatewayTopic, json.writeValueAsBytes(req));
+        } catch (Exception e) {
+            pendingRequest.completeExceptionally(e);
+        }
 
-            MqttRawResponse rawResponse = pendingRequest.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            BeanUtils.copyProperties(rawResponse, response);
-            if (!StringUtils.hasText(json.convertValue(response.getBody().get("error"), String.class))) {
-                if (responseType != null) {
-                    response.setSuccessBody(json.readValue(json.writeValueAsString(rawResponse.getBody()), responseType));
-                }
-            } else {
-                response.setErrorBody(json.readValue(json.writeValueAsString(rawResponse.getBody()), MqttRequestError.class));
+        return pendingRequest
+                .orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((rawResponse, e) -> pendingRequests.remove(req.getId()))
+                .handle((rawResponse, e) -> {
+                    try {
+                        if (e != null) {
+                            throw e;
+                        }
+
+                        return convertResponse(rawResponse, responseType);
+                    } catch (Throwable t) {
+                        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                        log.error("Request Gateway Error: " + (cause instanceof TimeoutException ? "timeout " + req.getUrl() : cause.getMessage()));
+                        throw ServiceException.with(MilesightGatewayErrorCode.GATEWAY_REQUEST_TIMEOUT).build();
+                    }
+                });
+    }
+
+    private <T> MqttResponse<T> convertResponse(MqttRawResponse rawResponse, Class<T> responseType) throws IOException {
+        final MqttResponse<T> response = new MqttResponse<>();
+        response.setId(rawResponse.getId());
+        response.setGatewayEUI(rawResponse.getGatewayEUI());
+        response.setMethod(rawResponse.getMethod());
+        response.setUrl(rawResponse.getUrl());
+        response.setCtx(rawResponse.getCtx());
+        response.setBody(rawResponse.getBody());
+
+        JsonNode body = rawResponse.getBody();
+        JsonNode error = body.get("error");
+        if (error == null || error.isNull() || !StringUtils.hasText(error.asText())) {
+            if (responseType != null && responseType != Void.class) {
+                response.setSuccessBody(getBodyReader(responseType).readValue(body));
             }
-        } catch (Exception e) {
-            log.error("Request Gateway Error: " + e.getMessage());
-            throw ServiceException.with(MilesightGatewayErrorCode.GATEWAY_REQUEST_TIMEOUT).build();
-        } finally {
-            pendingRequests.remove(req.getId());
+        } else {
+            response.setErrorBody(getBodyReader(MqttRequestError.class).readValue(body));
         }
 
         return response;
     }
 
+    private ObjectReader getBodyReader(Class<?> bodyType) {
+        return bodyReaders.computeIfAbsent(bodyType, json::readerFor);
+    }
+
     public <T> List<MqttResponse<T>> batchRequest(String gatewayEui, List<MqttRequest> req, Class<T> responseType) {
-        if (req.isEmpty()) {
-            return List.of();
-        }
+        return MsGwMqttUtil.join(batchRequestAsync(TenantContext.getTenantId(), gatewayEui, req, responseType));
+    }
 
-        final List<MqttResponse<T>> result = new ArrayList<>();
-
-        int offset = 0;
-        while (offset < req.size()) {
-            int end = Math.min(req.size(), offset + GATEWAY_REQUEST_BATCH_SIZE);
-            List<CompletableFuture<MqttResponse<T>>> allFutures = req
-                    .subList(offset, end)
-                    .stream()
-                    .map(r -> CompletableFuture.supplyAsync(() -> request(gatewayEui, r, responseType), taskExecutor))
-                    .toList();
-            CompletableFuture<?>[] futuresArray = allFutures.toArray(new CompletableFuture<?>[0]);
-            CompletableFuture.allOf(futuresArray).join();
-            allFutures.forEach(f -> result.add(f.join()));
-            offset = end;
+    public <T> CompletableFuture<List<MqttResponse<T>>> batchRequestAsync(String tenantId, String gatewayEui, List<MqttRequest> req, Class<T> responseType) {
+        if (req.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
         }
 
-        return result;
+        // the request window keeps the gateway busy without overloading it
+        List<CompletableFuture<MqttResponse<T>>> allFutures = req.stream()
+                .map(r -> requestAsync(tenantId, gatewayEui, r, responseType))
+                .toList();
+        return CompletableFuture.allOf(allFutures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> allFutures.stream().map(CompletableFuture::join).toList());
     }
 }
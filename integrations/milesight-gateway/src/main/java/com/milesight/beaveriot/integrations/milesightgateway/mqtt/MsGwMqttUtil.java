@@ -2,6 +2,9 @@ package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
 
 import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 /**
  * MsGwMqttUtil class.
  *
@@ -24,4 +27,19 @@ public class MsGwMqttUtil {
     public static String getMqttTopic(String gatewayEui, String scope) {
         return Constants.INTEGRATION_ID + "/" + gatewayEui + "/" + scope;
     }
+
+    /**
+     * Wait for the future and rethrow the original runtime exception instead of the CompletionException.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+
+            throw e;
+        }
+    }
 }
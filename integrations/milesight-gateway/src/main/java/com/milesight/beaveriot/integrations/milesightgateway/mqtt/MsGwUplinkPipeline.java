@@ -0,0 +1,186 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.UplinkPipelineMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MsGwUplinkPipeline class.
+ *
+ * Uplinks are hashed by device eui onto single-threaded lanes, so frames of the same device keep their order
+ * while different devices are processed in parallel.
+ *
+ * @author simon
+ * @date 2025/3/21
+ */
+@Component
+@Slf4j
+public class MsGwUplinkPipeline {
+    public enum OverflowPolicy {
+        /**
+         * Wait for space in the lane, which applies back pressure to the mqtt subscriber.
+         */
+        BLOCK,
+        /**
+         * Drop the incoming uplink.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest queued uplink of the lane.
+         */
+        DROP_OLDEST,
+    }
+
+    private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+    @Value("${milesight-gateway.uplink.lanes:0}")
+    private int laneCount;
+
+    @Value("${milesight-gateway.uplink.lane-capacity:1000}")
+    private int laneCapacity;
+
+    @Value("${milesight-gateway.uplink.overflow-policy:BLOCK}")
+    private OverflowPolicy overflowPolicy;
+
+    private Lane[] lanes = new Lane[0];
+
+    public void start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        Lane[] newLanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            newLanes[i] = new Lane(laneCapacity);
+            Thread thread = new Thread(newLanes[i], "msgw-uplink-lane-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        lanes = newLanes;
+        log.info("Uplink pipeline started: {} lanes, capacity {}, overflow policy {}", count, laneCapacity, overflowPolicy);
+    }
+
+    /**
+     * Run the task on the lane of the device. Tasks of the same device run in submitted order.
+     */
+    public void dispatch(String deviceEui, Runnable task) {
+        Lane[] currentLanes = lanes;
+        if (currentLanes.length == 0) {
+            task.run();
+            return;
+        }
+
+        Lane lane = currentLanes[Math.floorMod(deviceEui.hashCode(), currentLanes.length)];
+        UplinkTask uplinkTask = new UplinkTask(TenantContext.getTenantId(), task, System.nanoTime());
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                try {
+                    lane.queue.put(uplinkTask);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    lane.dropped.incrementAndGet();
+                }
+            }
+            case DROP_NEWEST -> {
+                if (!lane.queue.offer(uplinkTask)) {
+                    lane.dropped.incrementAndGet();
+                    log.warn("Uplink lane is full, drop uplink of {}", deviceEui);
+                }
+            }
+            case DROP_OLDEST -> {
+                while (!lane.queue.offer(uplinkTask)) {
+                    if (lane.queue.poll() != null) {
+                        lane.dropped.incrementAndGet();
+                        log.warn("Uplink lane is full, drop the oldest uplink for {}", deviceEui);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Uplinks waiting in all lanes.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+
+        return depth;
+    }
+
+    public UplinkPipelineMetrics getMetrics() {
+        UplinkPipelineMetrics metrics = new UplinkPipelineMetrics();
+        metrics.setOverflowPolicy(overflowPolicy.name());
+        metrics.setLaneCapacity(laneCapacity);
+        List<UplinkPipelineMetrics.LaneMetrics> laneMetricsList = new ArrayList<>();
+        for (Lane lane : lanes) {
+            UplinkPipelineMetrics.LaneMetrics laneMetrics = new UplinkPipelineMetrics.LaneMetrics();
+            laneMetrics.setQueueDepth(lane.queue.size());
+            laneMetrics.setProcessed(lane.processed.get());
+            laneMetrics.setDropped(lane.dropped.get());
+            laneMetrics.setLastLagMillis(lane.lastLagMillis.get());
+            laneMetrics.setMaxLagMillis(lane.maxLagMillis.get());
+            laneMetricsList.add(laneMetrics);
+        }
+
+        metrics.setLanes(laneMetricsList);
+        return metrics;
+    }
+
+    private record UplinkTask(String tenantId, Runnable task, long enqueuedAtNanos) {}
+
+    private static class Lane implements Runnable {
+        private final BlockingQueue<UplinkTask> queue;
+
+        private final AtomicLong processed = new AtomicLong();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private final AtomicLong lastLagMillis = new AtomicLong();
+
+        private final AtomicLong maxLagMillis = new AtomicLong();
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                UplinkTask uplinkTask;
+                try {
+                    uplinkTask = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                long lagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - uplinkTask.enqueuedAtNanos());
+                lastLagMillis.set(lagMillis);
+                maxLagMillis.accumulateAndGet(lagMillis, Math::max);
+                try {
+                    TenantContext.setTenantId(uplinkTask.tenantId());
+                    uplinkTask.task().run();
+                } catch (Exception e) {
+                    log.error("Process uplink error", e);
+                } finally {
+                    processed.incrementAndGet();
+                }
+            }
+        }
+    }
+}
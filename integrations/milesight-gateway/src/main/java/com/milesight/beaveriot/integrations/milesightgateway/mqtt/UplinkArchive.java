@@ -0,0 +1,466 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.UplinkArchiveMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * UplinkArchive class.
+ *
+ * Optional archive of raw uplink frames, so a fixed decoder could be applied to the history.
+ * Frames of each tenant are appended to memory-mapped segment files by one writer thread, which forces
+ * a batch of frames to disk at once. Uplink threads only offer frames to a bounded queue, frames are dropped if it is full.
+ * <p>
+ * Segment file "{first timestamp}.seg" holds records of
+ * [int length][long timestamp][long devEUI][short fPort][int fCnt][data], terminated by a zero length.
+ * When a segment is rolled, "{first timestamp}.idx" is written with [long max timestamp][int count][long devEUI]...
+ * so segments could be skipped by time and device without being scanned.
+ *
+ * @author simon
+ * @date 2025/4/1
+ */
+@Component
+@Slf4j
+public class UplinkArchive {
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * timestamp + devEUI + fPort + fCnt
+     */
+    private static final int RECORD_BODY_HEADER_SIZE = 8 + 8 + 2 + 4;
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final int NO_VALUE = -1;
+
+    private static final int EUI_HEX_LENGTH = 16;
+
+    private static final long RETENTION_CHECK_PERIOD_MILLIS = 60 * 60 * 1000L;
+
+    @Value("${milesight-gateway.uplink-archive.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Kept under the data directory of the integration, the temporary directory may be wiped on restart.
+     */
+    @Value("${milesight-gateway.uplink-archive.dir:${milesight-gateway.data-dir:${user.home}/beaver-iot/milesight-gateway}/uplink-archive}")
+    private String archiveDir;
+
+    @Value("${milesight-gateway.uplink-archive.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    @Value("${milesight-gateway.uplink-archive.retention-days:30}")
+    private int retentionDays;
+
+    @Value("${milesight-gateway.uplink-archive.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${milesight-gateway.uplink-archive.batch-size:512}")
+    private int batchSize;
+
+    private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+    private BlockingQueue<PendingRecord> queue;
+
+    /**
+     * segment writers by tenant, accessed by the writer thread only
+     */
+    private final Map<String, SegmentWriter> writers = new HashMap<>();
+
+    /**
+     * segment files being written, which should not be deleted by retention
+     */
+    private final Set<Path> activeSegments = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong archived = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    public record Record(long timestamp, String deviceEui, Integer fPort, Integer fCnt, byte[] data) {
+    }
+
+    private record PendingRecord(String tenantId, Record record) {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void start() {
+        if (!enabled || !isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        Thread thread = new Thread(this::runWriter, "msgw-uplink-archive");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Uplink archive started: {}, segment size {} MB, retention {} days", archiveDir, segmentSizeMb, retentionDays);
+    }
+
+    /**
+     * Offer the frame to the archive without blocking.
+     */
+    public void append(String tenantId, Record record) {
+        BlockingQueue<PendingRecord> currentQueue = queue;
+        if (currentQueue == null) {
+            return;
+        }
+
+        if (record.deviceEui() == null || record.deviceEui().length() != EUI_HEX_LENGTH) {
+            return;
+        }
+
+        if (!currentQueue.offer(new PendingRecord(tenantId, record))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void runWriter() {
+        long lastRetentionCheck = 0;
+        List<PendingRecord> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                PendingRecord first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastRetentionCheck > RETENTION_CHECK_PERIOD_MILLIS) {
+                    lastRetentionCheck = now;
+                    applyRetention(now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Uplink archive writer error", e);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Append the batch and force every touched segment once.
+     */
+    private void writeBatch(List<PendingRecord> batch) {
+        Set<SegmentWriter> touched = new HashSet<>();
+        int appended = 0;
+        for (PendingRecord pendingRecord : batch) {
+            try {
+                SegmentWriter writer = writers.computeIfAbsent(pendingRecord.tenantId(), tenantId -> new SegmentWriter(getTenantDir(tenantId)));
+                writer.append(pendingRecord.record());
+                touched.add(writer);
+                appended++;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Archive uplink of {} failed: {}", pendingRecord.record().deviceEui(), e.getMessage());
+                dropped.incrementAndGet();
+            }
+        }
+
+        touched.forEach(SegmentWriter::commit);
+        archived.addAndGet(appended);
+    }
+
+    private Path getTenantDir(String tenantId) {
+        return Path.of(archiveDir, tenantId.replaceAll("[^A-Za-z0-9_-]", "_"));
+    }
+
+    private class SegmentWriter {
+        private final Path tenantDir;
+
+        private Path segmentFile;
+
+        private MappedByteBuffer buffer;
+
+        private long maxTimestamp;
+
+        private final Set<Long> devices = new HashSet<>();
+
+        SegmentWriter(Path tenantDir) {
+            this.tenantDir = tenantDir;
+        }
+
+        void append(Record record) throws IOException {
+            byte[] data = record.data() == null ? new byte[0] : record.data();
+            int bodyLength = RECORD_BODY_HEADER_SIZE + data.length;
+            // keep room for the zero length at the end of the segment
+            int required = LENGTH_SIZE + bodyLength + LENGTH_SIZE;
+            if (required > getSegmentSize()) {
+                throw new IllegalArgumentException("Frame too large: " + data.length);
+            }
+
+            if (buffer == null || buffer.remaining() < required) {
+                roll(record.timestamp());
+            }
+
+            long eui = Long.parseUnsignedLong(record.deviceEui(), 16);
+            int start = buffer.position();
+            buffer.position(start + LENGTH_SIZE);
+            buffer.putLong(record.timestamp());
+            buffer.putLong(eui);
+            buffer.putShort((short) (record.fPort() == null ? NO_VALUE : record.fPort()));
+            buffer.putInt(record.fCnt() == null ? NO_VALUE : record.fCnt());
+            buffer.put(data);
+            // the length is written last, so readers never see a partial record
+            buffer.putInt(start, bodyLength);
+
+            maxTimestamp = Math.max(maxTimestamp, record.timestamp());
+            devices.add(eui);
+        }
+
+        void commit() {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        private void roll(long timestamp) throws IOException {
+            finish();
+            Files.createDirectories(tenantDir);
+            long firstTimestamp = timestamp;
+            Path file;
+            while (Files.exists(file = tenantDir.resolve(getSegmentName(firstTimestamp) + SEGMENT_SUFFIX))) {
+                firstTimestamp++;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSegmentSize());
+            }
+
+            segmentFile = file;
+            activeSegments.add(file);
+            maxTimestamp = timestamp;
+            devices.clear();
+        }
+
+        private void finish() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+
+            buffer.force();
+            ByteBuffer index = ByteBuffer.allocate(8 + 4 + devices.size() * 8);
+            index.putLong(maxTimestamp);
+            index.putInt(devices.size());
+            devices.stream().sorted().forEach(index::putLong);
+            Files.write(getIndexFile(segmentFile), index.array());
+            activeSegments.remove(segmentFile);
+            buffer = null;
+            segmentFile = null;
+        }
+    }
+
+    private long getSegmentSize() {
+        return segmentSizeMb * 1024L * 1024L;
+    }
+
+    private static String getSegmentName(long firstTimestamp) {
+        return String.format("%020d", firstTimestamp);
+    }
+
+    private static Path getIndexFile(Path segmentFile) {
+        String fileName = segmentFile.getFileName().toString();
+        return segmentFile.resolveSibling(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private record SegmentIndex(long maxTimestamp, long[] devices) {
+    }
+
+    private static SegmentIndex readIndex(Path segmentFile) {
+        Path indexFile = getIndexFile(segmentFile);
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+
+        try {
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            long maxTimestamp = index.getLong();
+            long[] devices = new long[index.getInt()];
+            for (int i = 0; i < devices.length; i++) {
+                devices[i] = index.getLong();
+            }
+            return new SegmentIndex(maxTimestamp, devices);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Read uplink archive index {} failed: {}", indexFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<Path> listSegments(Path tenantDir) throws IOException {
+        if (!Files.isDirectory(tenantDir)) {
+            return List.of();
+        }
+
+        try (Stream<Path> files = Files.list(tenantDir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+    }
+
+    private static long getFirstTimestamp(Path segmentFile) {
+        String fileName = segmentFile.getFileName().toString();
+        return Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Scan archived frames of the tenant in time order.
+     *
+     * @param deviceEuis devices to scan, or null for all devices
+     * @param fromTimestamp inclusive
+     * @param toTimestamp inclusive
+     */
+    public void scan(String tenantId, Set<String> deviceEuis, long fromTimestamp, long toTimestamp, Consumer<Record> consumer) {
+        findSegments(tenantId, deviceEuis, fromTimestamp, toTimestamp)
+                .forEach(segmentFile -> scanSegment(segmentFile, deviceEuis, fromTimestamp, toTimestamp, consumer));
+    }
+
+    /**
+     * Find the segments of the tenant which may contain frames of the devices in the time range, in time order.
+     * Segments without an index (e.g. the active ones) are always included.
+     *
+     * @param deviceEuis devices to scan, or null for all devices
+     */
+    public List<Path> findSegments(String tenantId, Set<String> deviceEuis, long fromTimestamp, long toTimestamp) {
+        Set<Long> euiSet = toEuiSet(deviceEuis);
+        List<Path> segments = new ArrayList<>();
+        try {
+            for (Path segmentFile : listSegments(getTenantDir(tenantId))) {
+                if (getFirstTimestamp(segmentFile) > toTimestamp) {
+                    break;
+                }
+
+                SegmentIndex index = readIndex(segmentFile);
+                if (index != null && (index.maxTimestamp() < fromTimestamp || (euiSet != null && Arrays.stream(index.devices()).noneMatch(euiSet::contains)))) {
+                    continue;
+                }
+
+                segments.add(segmentFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return segments;
+    }
+
+    /**
+     * Scan frames of the devices in one segment found by {@link #findSegments}, in time order.
+     */
+    public void scanSegment(Path segmentFile, Set<String> deviceEuis, long fromTimestamp, long toTimestamp, Consumer<Record> consumer) {
+        try {
+            scanSegment(segmentFile, toEuiSet(deviceEuis), fromTimestamp, toTimestamp, consumer);
+        } catch (NoSuchFileException e) {
+            // expired meanwhile
+            log.debug("Uplink archive segment {} not found", segmentFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Set<Long> toEuiSet(Set<String> deviceEuis) {
+        if (deviceEuis == null) {
+            return null;
+        }
+
+        Set<Long> euiSet = new HashSet<>();
+        deviceEuis.stream().filter(eui -> eui.length() == EUI_HEX_LENGTH).forEach(eui -> euiSet.add(Long.parseUnsignedLong(eui, 16)));
+        return euiSet;
+    }
+
+    private static void scanSegment(Path segmentFile, Set<Long> euiSet, long fromTimestamp, long toTimestamp, Consumer<Record> consumer) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        while (buffer.remaining() >= LENGTH_SIZE) {
+            int start = buffer.position();
+            int bodyLength = buffer.getInt();
+            if (bodyLength < RECORD_BODY_HEADER_SIZE || bodyLength > buffer.remaining()) {
+                return;
+            }
+
+            long timestamp = buffer.getLong();
+            long eui = buffer.getLong();
+            if (timestamp < fromTimestamp || timestamp > toTimestamp || (euiSet != null && !euiSet.contains(eui))) {
+                buffer.position(start + LENGTH_SIZE + bodyLength);
+                continue;
+            }
+
+            int fPort = buffer.getShort();
+            int fCnt = buffer.getInt();
+            byte[] data = new byte[bodyLength - RECORD_BODY_HEADER_SIZE];
+            buffer.get(data);
+            consumer.accept(new Record(
+                    timestamp,
+                    String.format("%016X", eui),
+                    fPort == NO_VALUE ? null : fPort & 0xffff,
+                    fCnt == NO_VALUE ? null : fCnt,
+                    data
+            ));
+        }
+    }
+
+    private void applyRetention(long now) {
+        if (retentionDays <= 0) {
+            return;
+        }
+
+        long expireBefore = now - retentionDays * 24L * 60 * 60 * 1000;
+        try (Stream<Path> tenantDirs = Files.isDirectory(Path.of(archiveDir)) ? Files.list(Path.of(archiveDir)) : Stream.empty()) {
+            for (Path tenantDir : tenantDirs.toList()) {
+                for (Path segmentFile : listSegments(tenantDir)) {
+                    if (activeSegments.contains(segmentFile)) {
+                        continue;
+                    }
+
+                    SegmentIndex index = readIndex(segmentFile);
+                    long maxTimestamp = index != null ? index.maxTimestamp() : Files.getLastModifiedTime(segmentFile).toMillis();
+                    if (maxTimestamp < expireBefore) {
+                        Files.deleteIfExists(getIndexFile(segmentFile));
+                        Files.deleteIfExists(segmentFile);
+                        log.info("Expired uplink archive segment deleted: {}", segmentFile);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Apply uplink archive retention failed: {}", e.getMessage());
+        }
+    }
+
+    public UplinkArchiveMetrics getMetrics() {
+        UplinkArchiveMetrics metrics = new UplinkArchiveMetrics();
+        metrics.setEnabled(enabled);
+        BlockingQueue<PendingRecord> currentQueue = queue;
+        metrics.setQueued(currentQueue == null ? 0 : currentQueue.size());
+        metrics.setArchived(archived.get());
+        metrics.setDropped(dropped.get());
+        return metrics;
+    }
+}
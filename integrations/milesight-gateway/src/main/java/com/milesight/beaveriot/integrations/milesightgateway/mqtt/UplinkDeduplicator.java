@@ -0,0 +1,108 @@
+package com.milesight.beaveriot.integrations.milesightgateway.mqtt;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * UplinkDeduplicator class.
+ *
+ * A frame heard by several gateways is forwarded by each of them. Recently seen frames are remembered in a
+ * fixed-size direct-mapped table of fingerprints (tenant, devEUI, fCnt, payload), so copies arriving within
+ * the window are dropped before decoding. A slot is simply overwritten by a newer frame, so the memory is bounded.
+ * Races may let a duplicate through, which only costs an extra decode as before.
+ * <p>
+ * Frames are only deduplicated within one node. The uplink subscription is shared by the nodes of a cluster, so copies
+ * from different gateways may be delivered to different nodes and each of them is decoded. A node could not drop
+ * a copy in favor of another node either, as it does not know whether that node received one.
+ *
+ * @author simon
+ * @date 2025/4/1
+ */
+@Component
+public class UplinkDeduplicator {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final long EMPTY_FINGERPRINT = 0L;
+
+    @Value("${milesight-gateway.uplink.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${milesight-gateway.uplink.dedup.window-millis:3000}")
+    private long windowMillis;
+
+    private final AtomicLongArray fingerprints;
+
+    private final AtomicLongArray timestamps;
+
+    private final int mask;
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public UplinkDeduplicator(@Value("${milesight-gateway.uplink.dedup.slots:65536}") int slots) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.fingerprints = new AtomicLongArray(size);
+        this.timestamps = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Record the frame and check whether the same frame has been seen by this node within the window.
+     *
+     * @return true if the frame is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(String tenantId, String deviceEui, Integer fCnt, byte[] data, long now) {
+        if (!enabled || fCnt == null) {
+            return false;
+        }
+
+        long fingerprint = fingerprint(tenantId, deviceEui, fCnt, data);
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (true) {
+            long current = fingerprints.get(slot);
+            if (current == fingerprint && now - timestamps.get(slot) <= windowMillis) {
+                duplicates.incrementAndGet();
+                return true;
+            }
+
+            if (fingerprints.compareAndSet(slot, current, fingerprint)) {
+                timestamps.set(slot, now);
+                return false;
+            }
+        }
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    private static long fingerprint(String tenantId, String deviceEui, int fCnt, byte[] data) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, tenantId == null ? new byte[0] : tenantId.getBytes(StandardCharsets.UTF_8));
+        hash = mix(hash, deviceEui.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ ((fCnt >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        hash = mix(hash, data == null ? new byte[0] : data);
+
+        // final avalanche, so the low bits used as slot index depend on all input bits
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == EMPTY_FINGERPRINT ? 1L : hash;
+    }
+
+    private static long mix(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+
+        // separator between fields
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+}
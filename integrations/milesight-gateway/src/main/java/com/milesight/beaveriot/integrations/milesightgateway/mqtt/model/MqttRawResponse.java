@@ -1,9 +1,8 @@
 package com.milesight.beaveriot.integrations.milesightgateway.mqtt.model;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.Data;
 
-import java.util.Map;
-
 /**
  * MqttRawResponse class.
  *
@@ -22,5 +21,5 @@ public class MqttRawResponse {
 
     private MqttResponseContext ctx = new MqttResponseContext();
 
-    private Map<String, Object> body;
+    private JsonNode body;
 }
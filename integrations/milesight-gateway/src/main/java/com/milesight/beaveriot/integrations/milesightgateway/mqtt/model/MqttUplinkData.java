@@ -1,8 +1,16 @@
 package com.milesight.beaveriot.integrations.milesightgateway.mqtt.model;
 
 import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import lombok.Data;
 
+import java.io.IOException;
+
 /**
  * MqttUplinkData class.
  *
@@ -15,7 +23,11 @@ public class MqttUplinkData {
 
     private String applicationName;
 
-    private String data;
+    /**
+     * raw frame, decoded from base64 by the json parser
+     */
+    @JsonDeserialize(using = Base64DataDeserializer.class)
+    private byte[] data;
 
     private String devEUI;
 
@@ -30,4 +42,14 @@ public class MqttUplinkData {
     private String time;
 
     // ignore: rxInfo / txInfo
+
+    public static class Base64DataDeserializer extends JsonDeserializer<byte[]> {
+        private static final Base64Variant BASE64 = Base64Variants.MIME_NO_LINEFEEDS
+                .withReadPadding(Base64Variant.PaddingReadBehaviour.PADDING_ALLOWED);
+
+        @Override
+        public byte[] deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            return p.getBinaryValue(BASE64);
+        }
+    }
 }
@@ -0,0 +1,200 @@
+package com.milesight.beaveriot.integrations.milesightgateway.service;
+
+import com.milesight.beaveriot.base.exception.ServiceException;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.CodecErrorCode;
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.CodecResourceExecutorMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * CodecResourceExecutor class.
+ *
+ * Bounded executor of blocking codec repository requests, so fetching a large vendor catalog would not occupy
+ * the common pool. Requests to the same host are limited, requests over the limit wait in the queue of the host
+ * instead of blocking a pool thread. The queue of each host is bounded, requests over it are rejected at once.
+ *
+ * @author simon
+ * @date 2025/3/28
+ */
+@Component("milesightGatewayCodecResourceExecutor")
+@Slf4j
+public class CodecResourceExecutor {
+    private static final String LOCAL_HOST = "local";
+
+    @Value("${milesight-gateway.codec-io.threads:8}")
+    private int threads;
+
+    @Value("${milesight-gateway.codec-io.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${milesight-gateway.codec-io.per-host-limit:4}")
+    private int perHostLimit;
+
+    @Value("${milesight-gateway.codec-io.per-host-queue-capacity:1000}")
+    private int perHostQueueCapacity;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private final Map<String, HostQueue> hostQueueMap = new ConcurrentHashMap<>();
+
+    private class HostQueue {
+        private final String host;
+
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+
+        private int inFlight = 0;
+
+        private long completed = 0;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+
+        private void onComplete() {
+            synchronized (this) {
+                inFlight--;
+                completed++;
+            }
+
+            drain();
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    if (inFlight >= perHostLimit || queue.isEmpty()) {
+                        return;
+                    }
+
+                    inFlight++;
+                    next = queue.poll();
+                }
+
+                getExecutor().execute(next);
+            }
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    AtomicInteger threadIndex = new AtomicInteger();
+                    ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(
+                            threads,
+                            threads,
+                            60L,
+                            TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(queueCapacity),
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "msgw-codec-io-" + threadIndex.getAndIncrement());
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            new ThreadPoolExecutor.CallerRunsPolicy()
+                    );
+                    newExecutor.allowCoreThreadTimeOut(true);
+                    executor = newExecutor;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    public static String getHost(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host == null ? LOCAL_HOST : host;
+        } catch (IllegalArgumentException e) {
+            return LOCAL_HOST;
+        }
+    }
+
+    /**
+     * Run the blocking request on the executor when the host has room.
+     *
+     * @param url any url of the host requested
+     */
+    public <T> CompletableFuture<T> supplyAsync(String url, Supplier<T> request) {
+        String tenantId = TenantContext.getTenantId();
+        HostQueue hostQueue = hostQueueMap.computeIfAbsent(getHost(url), HostQueue::new);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            // the task may run on the caller thread when the executor is saturated
+            String previousTenantId = TenantContext.tryGetTenantId().orElse(null);
+            try {
+                TenantContext.setTenantId(tenantId);
+                result.complete(request.get());
+            } catch (Throwable e) {
+                // errors must complete the future as well, or the waiting caller would hang
+                result.completeExceptionally(e);
+            } finally {
+                if (previousTenantId == null) {
+                    TenantContext.clear();
+                } else {
+                    TenantContext.setTenantId(previousTenantId);
+                }
+                hostQueue.onComplete();
+            }
+        };
+
+        synchronized (hostQueue) {
+            if (hostQueue.queue.size() >= perHostQueueCapacity) {
+                result.completeExceptionally(ServiceException
+                        .with(CodecErrorCode.CODEC_RESOURCE_BUSY)
+                        .args(Map.of("host", hostQueue.host))
+                        .build());
+                return result;
+            }
+
+            hostQueue.queue.add(task);
+        }
+
+        hostQueue.drain();
+        return result;
+    }
+
+    public CodecResourceExecutorMetrics getMetrics() {
+        CodecResourceExecutorMetrics metrics = new CodecResourceExecutorMetrics();
+        metrics.setThreads(threads);
+        metrics.setPerHostLimit(perHostLimit);
+        ThreadPoolExecutor currentExecutor = executor;
+        if (currentExecutor != null) {
+            metrics.setActiveThreads(currentExecutor.getActiveCount());
+            metrics.setQueued(currentExecutor.getQueue().size());
+            metrics.setCompleted(currentExecutor.getCompletedTaskCount());
+        }
+
+        List<CodecResourceExecutorMetrics.HostMetrics> hostMetricsList = new ArrayList<>();
+        hostQueueMap.values().forEach(hostQueue -> {
+            CodecResourceExecutorMetrics.HostMetrics hostMetrics = new CodecResourceExecutorMetrics.HostMetrics();
+            synchronized (hostQueue) {
+                hostMetrics.setHost(hostQueue.host);
+                hostMetrics.setInFlight(hostQueue.inFlight);
+                hostMetrics.setQueued(hostQueue.queue.size());
+                hostMetrics.setCompleted(hostQueue.completed);
+            }
+            hostMetricsList.add(hostMetrics);
+        });
+        metrics.setHosts(hostMetricsList);
+        return metrics;
+    }
+}
@@ -8,23 +8,36 @@ import com.milesight.beaveriot.context.api.EntityServiceProvider;
 import com.milesight.beaveriot.context.integration.model.AttributeBuilder;
 import com.milesight.beaveriot.context.integration.model.Entity;
 import com.milesight.beaveriot.context.integration.model.event.ExchangeEvent;
+import com.milesight.beaveriot.context.security.TenantContext;
 import com.milesight.beaveriot.eventbus.annotations.EventSubscribe;
 import com.milesight.beaveriot.eventbus.api.Event;
 import com.milesight.beaveriot.integrations.milesightgateway.entity.MsGwIntegrationEntities;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.model.*;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceCodecData;
+import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceCodecIndex;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceModelData;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceHelper;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.ResourceCache;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.ResourceRequester;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.ResourceString;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.ClusterNodeTracker;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttUtil;
 import com.milesight.beaveriot.integrations.milesightgateway.util.LockConstants;
+import com.milesight.beaveriot.pubsub.MessagePubSub;
+import com.milesight.beaveriot.pubsub.api.annotation.MessageListener;
+import com.milesight.beaveriot.pubsub.api.message.RemoteBroadcastMessage;
+import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.util.ObjectUtils;
+import org.springframework.util.StringUtils;
 
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
@@ -43,8 +56,63 @@ public class DeviceCodecService {
     @Autowired
     MsGwEntityService msGwEntityService;
 
+    @Autowired
+    CodecResourceExecutor codecResourceExecutor;
+
     ObjectMapper json = ResourceString.jsonInstance();
 
+    @Value("${milesight-gateway.codec-cache.enabled:true}")
+    private boolean codecCacheEnabled;
+
+    @Value("${milesight-gateway.codec-cache.dir:${milesight-gateway.data-dir:${user.home}/beaver-iot/milesight-gateway}/codec-cache}")
+    private String codecCacheDir;
+
+    /**
+     * Serve codec resources from the cache only, device models not cached could not be added.
+     */
+    @Value("${milesight-gateway.codec-cache.offline:false}")
+    private boolean codecCacheOffline;
+
+    /**
+     * Local directory which could be used as a codec repository, local repositories are not allowed if empty.
+     */
+    @Value("${milesight-gateway.codec-repo.local-root:}")
+    private String codecRepoLocalRoot;
+
+    private volatile ResourceCache resourceCache;
+
+    @Autowired
+    MessagePubSub messagePubSub;
+
+    @Autowired
+    ClusterNodeTracker clusterNodeTracker;
+
+    /**
+     * codec index of the synced version of each tenant. It is trusted until the codec repo is synced again,
+     * so the model data is not read for each access. Other nodes drop theirs on the sync notification.
+     */
+    private final Map<String, DeviceCodecIndex> codecIndexMap = new ConcurrentHashMap<>();
+
+    private ResourceCache getResourceCache() {
+        if (!codecCacheEnabled) {
+            return null;
+        }
+
+        if (resourceCache == null) {
+            synchronized (this) {
+                if (resourceCache == null) {
+                    resourceCache = new ResourceCache(Path.of(codecCacheDir), codecCacheOffline);
+                }
+            }
+        }
+
+        return resourceCache;
+    }
+
+    private ResourceRequester newResourceRequester(String source) {
+        return new ResourceRequester(source, getResourceCache(), StringUtils.hasText(codecRepoLocalRoot) ? Path.of(codecRepoLocalRoot) : null);
+    }
+
     @EventSubscribe(payloadKeyExpression = MsGwIntegrationEntities.SYNC_DEVICE_CODEC_KEY, eventType = ExchangeEvent.EventType.CALL_SERVICE)
     public void onSyncDeviceCodec(Event<MsGwIntegrationEntities> event) throws ExecutionException, InterruptedException {
         syncDeviceCodec();
@@ -61,7 +129,7 @@ public class DeviceCodecService {
 
     @DistributedLock(name = LockConstants.DEVICE_CODEC_INDEX_UPDATE_LOCK)
     public void syncDeviceCodec(String url) throws ExecutionException, InterruptedException {
-        ResourceRequester resourceRequester = new ResourceRequester(url);
+        ResourceRequester resourceRequester = newResourceRequester(url);
         VersionResponse versionInfo = resourceRequester.requestCodecVersion();
         DeviceModelData modelData = msGwEntityService.getDeviceModelData();
         // Check whether version updated
@@ -71,29 +139,22 @@ public class DeviceCodecService {
         }
 
         List<Vendor> vendors = resourceRequester.requestCodecVendors(versionInfo.getVendors());
-        List<CompletableFuture<Map.Entry<String, List<DeviceModelData.DeviceInfo>>>> futures = vendors.stream().map(vendor -> CompletableFuture.supplyAsync(() -> {
-            String vendorId = vendor.getId();
-            DeviceResourceResponse response = resourceRequester.requestVendorDevices(vendor.getDevices());
-            List<DeviceModelData.DeviceInfo> vendorDevices = response.getDevices().stream().map((deviceResourceInfo -> {
-                DeviceModelData.DeviceInfo vendorDevice = new DeviceModelData.DeviceInfo();
-                vendorDevice.setId(deviceResourceInfo.getId());
-                vendorDevice.setName(deviceResourceInfo.getName());
-                return vendorDevice;
-            })).toList();
-            return Map.entry(vendorId, vendorDevices);
-        })).toList();
-
-        CompletableFuture<Void> allOf = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        Map<String, List<DeviceResourceInfo>> vendorDevices = requestVendorDevices(resourceRequester, vendors.stream().collect(Collectors.toMap(Vendor::getId, Vendor::getDevices)));
+        saveDeviceCodecsToEntity(versionInfo.getVersion(), resourceRequester.getRepoUrl(), vendors, vendorDevices);
+    }
 
-        CompletableFuture<Map<String, List<DeviceModelData.DeviceInfo>>> allResults = allOf.thenApply(v ->
-                futures.stream()
-                        .map(CompletableFuture::join)
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    private Map<String, List<DeviceResourceInfo>> requestVendorDevices(ResourceRequester resourceRequester, Map<String, String> vendorResourceMap) {
+        List<CompletableFuture<Map.Entry<String, List<DeviceResourceInfo>>>> futures = vendorResourceMap.entrySet().stream()
+                .map(entry -> codecResourceExecutor.supplyAsync(resourceRequester.getRepoUrl(), () -> Map.entry(entry.getKey(), resourceRequester.requestVendorDevices(entry.getValue()).getDevices())))
+                .toList();
 
-        saveDeviceCodecsToEntity(versionInfo.getVersion(), resourceRequester.getRepoUrl(), vendors, allResults.get());
+        return MsGwMqttUtil.join(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> futures.stream().map(CompletableFuture::join).toList()))
+                .stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
     }
 
-    private void saveDeviceCodecsToEntity(String version, String repoUrl, List<Vendor> vendors, Map<String, List<DeviceModelData.DeviceInfo>> vendorDevices) {
+    private void saveDeviceCodecsToEntity(String version, String repoUrl, List<Vendor> vendors, Map<String, List<DeviceResourceInfo>> vendorDevices) {
         // save to deviceModelData of integration entities
         DeviceModelData deviceModelData = new DeviceModelData();
         deviceModelData.setVersion(version);
@@ -103,10 +164,21 @@ public class DeviceCodecService {
             vendorInfo.setId(vendor.getId());
             vendorInfo.setName(vendor.getName());
             vendorInfo.setDevices(vendor.getDevices());
-            vendorInfo.setDeviceInfoList(vendorDevices.get(vendor.getId()));
+            vendorInfo.setDeviceInfoList(vendorDevices.get(vendor.getId()).stream().map(deviceResourceInfo -> {
+                DeviceModelData.DeviceInfo vendorDevice = new DeviceModelData.DeviceInfo();
+                vendorDevice.setId(deviceResourceInfo.getId());
+                vendorDevice.setName(deviceResourceInfo.getName());
+                return vendorDevice;
+            }).toList());
             return vendorInfo;
         }).toList());
         msGwEntityService.saveDeviceModelData(deviceModelData);
+        String tenantId = TenantContext.getTenantId();
+        codecIndexMap.put(tenantId, new DeviceCodecIndex(deviceModelData, vendorDevices));
+        messagePubSub.publishAfterCommit(DeviceCodecSyncEvent.builder()
+                .tenantId(tenantId)
+                .originNodeId(clusterNodeTracker.getNodeId())
+                .build());
 
         // save to deviceModel enum attribute in add device of integration entities
         syncDeviceModelListToAdd(deviceModelData);
@@ -139,67 +211,103 @@ public class DeviceCodecService {
         entityServiceProvider.save(deviceModelNameEntity);
     }
 
-    public Map<String, DeviceCodecData> batchGetDeviceCodecData(List<String> vendorDeviceIdList) {
-        ResourceRequester resourceRequester = new ResourceRequester(msGwEntityService.getDeviceModelRepoUrl());
-        Set<String> deviceModelSet = new HashSet<>(vendorDeviceIdList);
-        Map<String, DeviceModelData.VendorDeviceInfo> deviceModelMap = new HashMap<>();
+    /**
+     * Get the device model index of the synced codec repo version. The model data is only read if the index of current
+     * tenant is absent, i.e. not loaded yet or the codec repo was synced by another node.
+     */
+    public DeviceCodecIndex getDeviceCodecIndex() {
+        String tenantId = TenantContext.getTenantId();
+        DeviceCodecIndex codecIndex = codecIndexMap.get(tenantId);
+        if (codecIndex != null) {
+            return codecIndex;
+        }
+
+        DeviceModelData deviceModelData = msGwEntityService.getDeviceModelData();
+        if (isModelDataEmpty(deviceModelData)) {
+            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "Please synchronize your codec repo first!").build();
+        }
+
+        ResourceRequester resourceRequester = newResourceRequester(deviceModelData.getSource(), deviceModelData.getVersion());
         Map<String, String> vendorResourceMap = new HashMap<>();
-        msGwEntityService.getDeviceModelData().iterateWhen((vendorInfo, deviceInfo) -> {
-            String deviceModelId = DeviceModelData.getDeviceModelId(vendorInfo, deviceInfo);
-            if (deviceModelSet.remove(deviceModelId)) {
-                deviceModelMap.put(deviceModelId, new DeviceModelData.VendorDeviceInfo(vendorInfo, deviceInfo));
-                vendorResourceMap.put(vendorInfo.getId(), vendorInfo.getDevices());
-            }
+        deviceModelData.getVendorInfoList().forEach(vendorInfo -> vendorResourceMap.put(vendorInfo.getId(), vendorInfo.getDevices()));
+        codecIndex = new DeviceCodecIndex(deviceModelData, requestVendorDevices(resourceRequester, vendorResourceMap));
+        DeviceCodecIndex existed = codecIndexMap.putIfAbsent(tenantId, codecIndex);
+        return existed != null ? existed : codecIndex;
+    }
 
-            return !deviceModelSet.isEmpty();
-        });
+    /**
+     * Drop the codec index of current tenant, it would be loaded from the model data at the next access.
+     */
+    public void evictDeviceCodecIndex() {
+        codecIndexMap.remove(TenantContext.getTenantId());
+    }
+
+    @MessageListener
+    public void onDeviceCodecSync(DeviceCodecSyncEvent event) {
+        if (clusterNodeTracker.getNodeId().equals(event.getOriginNodeId())) {
+            return;
+        }
+
+        codecIndexMap.remove(event.getTenantId());
+    }
 
-        if (!deviceModelSet.isEmpty()) {
+    @Data
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class DeviceCodecSyncEvent extends RemoteBroadcastMessage {
+        private String tenantId;
+
+        private String originNodeId;
+    }
+
+    private ResourceRequester newResourceRequester(String source, String version) {
+        ResourceRequester resourceRequester = newResourceRequester(source);
+        // resources of the synced version are immutable
+        resourceRequester.setVersion(version);
+        return resourceRequester;
+    }
+
+    public Map<String, DeviceCodecData> batchGetDeviceCodecData(List<String> vendorDeviceIdList) {
+        DeviceCodecIndex codecIndex = getDeviceCodecIndex();
+        Set<String> deviceModelSet = new LinkedHashSet<>(vendorDeviceIdList);
+        List<String> notFoundModels = deviceModelSet.stream().filter(deviceModelId -> codecIndex.getVendorDeviceInfo(deviceModelId) == null).toList();
+        if (!notFoundModels.isEmpty()) {
             // some device model not found. Maybe wrong model was passed or model index has not been updated to the latest version.
-            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "device model not found: " + deviceModelSet).build();
+            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "device model not found: " + notFoundModels).build();
         }
 
-        // get vendor device map
-        List<CompletableFuture<Map.Entry<String, Map<String, DeviceResourceInfo>>>> vendorDevicesFutures = vendorResourceMap.entrySet().stream()
-                .map(entry -> CompletableFuture.supplyAsync(() -> Map.entry(entry.getKey(), resourceRequester.requestVendorDevices(entry.getValue()).getDevices().stream().collect(Collectors.toMap(DeviceResourceInfo::getId, deviceResourceInfo -> deviceResourceInfo)))))
-                .toList();
-        Map<String, Map<String, DeviceResourceInfo>> vendorDevicesMap = CompletableFuture.allOf(vendorDevicesFutures.toArray(new CompletableFuture[0]))
-                .thenApply(v -> vendorDevicesFutures.stream().map(CompletableFuture::join).toList())
-                .join()
-                .stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        ResourceRequester resourceRequester = newResourceRequester(codecIndex.getSource(), codecIndex.getVersion());
+        Map<String, CompletableFuture<DeviceCodecData>> futures = new LinkedHashMap<>();
+        deviceModelSet.forEach(deviceModelId -> futures.put(deviceModelId, codecIndex.getCodecData(deviceModelId, modelId -> {
+            DeviceResourceInfo resourceInfo = codecIndex.getResourceInfo(modelId);
+            if (resourceInfo == null) {
+                return CompletableFuture.failedFuture(ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "device data not found: " + modelId).build());
+            }
 
-        // get vendor device data
-        List<CompletableFuture<Map.Entry<String, DeviceCodecData>>> vendorDeviceCodecFutures = deviceModelMap.entrySet().stream()
-                .map(entry -> CompletableFuture.supplyAsync(() -> {
-                    DeviceCodecData codecData = new DeviceCodecData();
-                    DeviceModelData.VendorDeviceInfo vendorDeviceInfo = entry.getValue();
-                    Map<String, DeviceResourceInfo> vendorDeviceResource = vendorDevicesMap.get(vendorDeviceInfo.getVendorId());
-                    if (ObjectUtils.isEmpty(vendorDeviceResource)) {
-                        throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "vendor data found: " + vendorDeviceInfo.getVendorId()).build();
-                    }
-
-                    DeviceResourceInfo resourceInfo = vendorDeviceResource.get(vendorDeviceInfo.getDeviceId());
-                    if (ObjectUtils.isEmpty(resourceInfo)) {
-                        throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "device data found: " + vendorDeviceInfo.getVendorId()).build();
-                    }
-
-                    codecData.setResourceInfo(resourceInfo);
-
-                    CompletableFuture<String> decoderScriptFuture = CompletableFuture.supplyAsync(() -> resourceRequester.requestResourceAsString(resourceInfo.getDecoderScript()));
-                    CompletableFuture<String> encoderScriptFuture = CompletableFuture.supplyAsync(() -> resourceRequester.requestResourceAsString(resourceInfo.getEncoderScript()));
-                    CompletableFuture<DeviceDef> deviceDefFuture = CompletableFuture.supplyAsync(() -> resourceRequester.requestDeviceDef(resourceInfo.getCodec()));
-                    codecData.setDecoderStr(decoderScriptFuture.join());
-                    codecData.setEncoderStr(encoderScriptFuture.join());
-                    codecData.setDef(deviceDefFuture.join());
-                    return Map.entry(entry.getKey(), codecData);
-                })).toList();
-
-        return CompletableFuture.allOf(vendorDeviceCodecFutures.toArray(new CompletableFuture[0]))
-                .thenApply(v -> vendorDeviceCodecFutures.stream().map(CompletableFuture::join).toList())
-                .join()
-                .stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            return requestDeviceCodecData(resourceRequester, resourceInfo);
+        })));
+
+        Map<String, DeviceCodecData> result = new HashMap<>();
+        futures.forEach((deviceModelId, future) -> result.put(deviceModelId, MsGwMqttUtil.join(future)));
+        return result;
+    }
+
+    private CompletableFuture<DeviceCodecData> requestDeviceCodecData(ResourceRequester resourceRequester, DeviceResourceInfo resourceInfo) {
+        CompletableFuture<String> decoderScriptFuture = codecResourceExecutor.supplyAsync(resourceRequester.getRepoUrl(), () -> resourceRequester.requestResourceAsString(resourceInfo.getDecoderScript()));
+        CompletableFuture<String> encoderScriptFuture = codecResourceExecutor.supplyAsync(resourceRequester.getRepoUrl(), () -> resourceRequester.requestResourceAsString(resourceInfo.getEncoderScript()));
+        CompletableFuture<DeviceDef> deviceDefFuture = codecResourceExecutor.supplyAsync(resourceRequester.getRepoUrl(), () -> resourceRequester.requestDeviceDef(resourceInfo.getCodec()));
+        return CompletableFuture.allOf(decoderScriptFuture, encoderScriptFuture, deviceDefFuture).thenApply(v -> {
+            DeviceCodecData codecData = new DeviceCodecData();
+            codecData.setResourceInfo(resourceInfo);
+            codecData.setDecoderStr(decoderScriptFuture.join());
+            codecData.setEncoderStr(encoderScriptFuture.join());
+            codecData.setDef(deviceDefFuture.join());
+            codecData.setEntityTemplate(DeviceHelper.compileEntityTemplate(codecData.getDef()));
+            return codecData;
+        });
     }
 
     private DeviceCodecService self() {
@@ -1,7 +1,6 @@
 package com.milesight.beaveriot.integrations.milesightgateway.service;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.milesight.beaveriot.base.annotations.shedlock.DistributedLock;
 import com.milesight.beaveriot.base.enums.ErrorCode;
@@ -16,15 +15,13 @@ import com.milesight.beaveriot.context.integration.model.ExchangePayload;
 import com.milesight.beaveriot.context.integration.model.event.ExchangeEvent;
 import com.milesight.beaveriot.eventbus.annotations.EventSubscribe;
 import com.milesight.beaveriot.eventbus.api.Event;
-import com.milesight.beaveriot.integrations.milesightgateway.codec.CodecExecutor;
-import com.milesight.beaveriot.integrations.milesightgateway.codec.EntityValueConverter;
 import com.milesight.beaveriot.integrations.milesightgateway.entity.MsGwIntegrationEntities;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceHelper;
 import com.milesight.beaveriot.integrations.milesightgateway.model.*;
 import com.milesight.beaveriot.integrations.milesightgateway.model.api.AddDeviceRequest;
 import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListProfileItem;
-import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListResponse;
-import com.milesight.beaveriot.integrations.milesightgateway.mqtt.model.MqttResponse;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttUtil;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.DeviceLastSeenTracker;
 import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayRequester;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
@@ -40,6 +37,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * DeviceService class.
@@ -62,12 +60,24 @@ public class DeviceService {
     @Autowired
     GatewayRequester gatewayRequester;
 
+    @Autowired
+    DownlinkScheduler downlinkScheduler;
+
     @Autowired
     EntityValueServiceProvider entityValueServiceProvider;
 
     @Autowired
     EntityManager entityManager;
 
+    @Autowired
+    GatewayRelationIndex gatewayRelationIndex;
+
+    @Autowired
+    GatewayHealthCache gatewayHealthCache;
+
+    @Autowired
+    DeviceLastSeenTracker deviceLastSeenTracker;
+
     private final ObjectMapper json = GatewayString.jsonInstance();
 
     public List<Device> getDevices(List<String> euiList) {
@@ -96,7 +106,7 @@ public class DeviceService {
 
         deviceData.setGatewayEUI(gatewayEUI);
 
-        MqttResponse<DeviceListResponse> deviceListResponseMqttResponse = gatewayRequester.requestDeviceList(gatewayEUI, 0, 1, null);
+        GatewayMetadata gatewayMetadata = gatewayHealthCache.getMetadata(gatewayEUI, false);
 
         // get device model
         String deviceModelId = addDevice.getDeviceModel();
@@ -115,7 +125,7 @@ public class DeviceService {
                 .identifier(deviceEUI)
                 .additional(json.convertValue(deviceData, new TypeReference<>() {}))
                 .build();
-        DeviceHelper.UpdateResourceResult updateResourceResult = DeviceHelper.updateResourceInfo(device, codecData.getDef());
+        DeviceHelper.UpdateResourceResult updateResourceResult = DeviceHelper.updateResourceInfo(device, codecData.getEntityTemplate(), deviceLastSeenTracker.isEnabled());
 
         // request gateway
         AddDeviceRequest addDeviceRequest = new AddDeviceRequest();
@@ -133,12 +143,12 @@ public class DeviceService {
         addDeviceRequest.setApplicationID(gatewayData.getApplicationId());
         String profileName = codecData.getResourceInfo().getDeviceProfile().get(0);
 
-        Optional<DeviceListProfileItem> profileItem = deviceListResponseMqttResponse
-                .getSuccessBody()
-                .getProfileResult()
-                .stream()
-                .filter(deviceListProfileItem -> deviceListProfileItem.getProfileName().equals(profileName))
-                .findFirst();
+        Optional<DeviceListProfileItem> profileItem = findProfile(gatewayMetadata, profileName);
+        if (profileItem.isEmpty()) {
+            // the profile may have been created after the metadata was cached
+            profileItem = findProfile(gatewayHealthCache.getMetadata(gatewayEUI, true), profileName);
+        }
+
         if (profileItem.isEmpty()) {
             throw ServiceException.with(MilesightGatewayErrorCode.NO_VALID_PROFILE_FOR_DEVICE).args(Map.of(
                     "gatewayEui", gatewayEUI,
@@ -161,36 +171,116 @@ public class DeviceService {
                 updateResourceResult.getDecoderEntity().getKey(), codecData.getDecoderStr(),
                 updateResourceResult.getEncoderEntity().getKey(), codecData.getEncoderStr()
         )));
+        msGwEntityService.invalidateDeviceCodec(List.of(deviceEUI));
+    }
+
+    private Optional<DeviceListProfileItem> findProfile(GatewayMetadata gatewayMetadata, String profileName) {
+        if (gatewayMetadata.getProfileResult() == null) {
+            return Optional.empty();
+        }
+
+        return gatewayMetadata.getProfileResult()
+                .stream()
+                .filter(deviceListProfileItem -> deviceListProfileItem.getProfileName().equals(profileName))
+                .findFirst();
     }
 
     public GatewayDeviceData getDeviceData(Device device) {
         return json.convertValue(device.getAdditional(), GatewayDeviceData.class);
     }
 
-    @DistributedLock(name = LockConstants.UPDATE_GATEWAY_DEVICE_ENUM_LOCK, waitForLock = "5s")
+    /**
+     * Update the device relation of one gateway. Devices of different gateways could be managed concurrently.
+     */
+    @DistributedLock(name = LockConstants.UPDATE_GATEWAY_DEVICES_LOCK_PREFIX + ":#{#p0}", waitForLock = "5s")
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public void manageGatewayDevices(String gatewayEUI, String deviceEUI, GatewayDeviceOperation op) {
         entityManager.flush();
         entityManager.clear();
-        Map<String, List<String>> gatewayDeviceRelation = msGwEntityService.getGatewayRelation();
-        List<String> deviceList = gatewayDeviceRelation.get(gatewayEUI);
+        List<String> deviceList = msGwEntityService.getGatewayDevices(gatewayEUI);
+        if (op == GatewayDeviceOperation.ADD && deviceList != null && deviceList.contains(deviceEUI)) {
+            throw ServiceException.with(MilesightGatewayErrorCode.DUPLICATED_DEVICE_EUI).args(Map.of("eui", deviceEUI)).build();
+        }
+
+        updateGatewayDevices(gatewayEUI, deviceList, List.of(deviceEUI), op);
+    }
+
+    /**
+     * Update the device relation of one gateway with a batch of devices. Devices already added or not existed are skipped.
+     *
+     * @return devices actually added or removed
+     */
+    @DistributedLock(name = LockConstants.UPDATE_GATEWAY_DEVICES_LOCK_PREFIX + ":#{#p0}", waitForLock = "5s")
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public List<String> batchManageGatewayDevices(String gatewayEUI, List<String> deviceEUIs, GatewayDeviceOperation op) {
+        entityManager.flush();
+        entityManager.clear();
+        return updateGatewayDevices(gatewayEUI, msGwEntityService.getGatewayDevices(gatewayEUI), deviceEUIs, op);
+    }
+
+    private List<String> updateGatewayDevices(String gatewayEUI, List<String> deviceList, List<String> deviceEUIs, GatewayDeviceOperation op) {
+        List<String> changedDevices;
         if (op == GatewayDeviceOperation.ADD) {
-            if (deviceList.contains(deviceEUI)) {
-                throw ServiceException.with(MilesightGatewayErrorCode.DUPLICATED_DEVICE_EUI).args(Map.of("eui", deviceEUI)).build();
+            if (deviceList == null) {
+                throw ServiceException.with(ErrorCode.DATA_NO_FOUND.getErrorCode(), "Gateway not found: " + gatewayEUI).build();
             }
 
-            deviceList.add(0, deviceEUI);
+            Set<String> deviceSet = new HashSet<>(deviceList);
+            changedDevices = deviceEUIs.stream().filter(deviceSet::add).toList();
+            // the latest added device first
+            changedDevices.forEach(deviceEUI -> deviceList.add(0, deviceEUI));
         } else if (op == GatewayDeviceOperation.DELETE) {
             if (deviceList == null) {
-                return;
+                return List.of();
             }
 
-            deviceList.remove(deviceEUI);
+            Set<String> deviceSet = new HashSet<>(deviceEUIs);
+            changedDevices = deviceList.stream().filter(deviceSet::contains).toList();
+            deviceList.removeIf(deviceSet::contains);
         } else {
             throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Unsupported gateway device relation op: " + op.name()).build();
         }
 
-        msGwEntityService.saveGatewayRelation(gatewayDeviceRelation);
+        if (changedDevices.isEmpty()) {
+            return changedDevices;
+        }
+
+        msGwEntityService.saveGatewayDevices(gatewayEUI, deviceList);
+        if (op == GatewayDeviceOperation.ADD) {
+            gatewayRelationIndex.addDevices(gatewayEUI, changedDevices);
+        } else {
+            gatewayRelationIndex.removeDevices(gatewayEUI, changedDevices);
+        }
+
+        return changedDevices;
+    }
+
+    /**
+     * Delete the devices in one transaction.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void batchDeleteDevices(List<Device> devices) {
+        devices.forEach(device -> deviceServiceProvider.deleteById(device.getId()));
+    }
+
+    /**
+     * Save the devices and the latest values of their entities in one transaction.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void batchSaveDevices(List<Device> devices, Map<String, Object> entityValues) {
+        devices.forEach(deviceServiceProvider::save);
+        if (!entityValues.isEmpty()) {
+            entityValueServiceProvider.saveLatestValues(ExchangePayload.create(entityValues));
+        }
+    }
+
+    /**
+     * Merge history values of devices one payload after another, in one transaction. The timestamp of each payload is
+     * used as the record time, and the values recorded at that time are overwritten.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void mergeHistoryRecords(List<ExchangePayload> payloads) {
+        payloads.forEach(payload -> entityValueServiceProvider.mergeHistoryRecord(payload, payload.getTimestamp()));
     }
 
     @Data
@@ -220,28 +310,15 @@ public class DeviceService {
 
         // use default credential for now, so we don't fetch gateways for username or credential id.
 
-        // downlink one by one
-        devicePayloadMap.forEach((deviceEui, payload) -> {
-            JsonNode jsonData = EntityValueConverter.convertToJson(payload.getDeviceKey(), payload.getPayload());
-            log.debug("Downlink json data: " + jsonData);
-
-            String encoderScript = msGwEntityService.getDeviceEncoderScript(deviceEui);
-            if (!StringUtils.hasText(encoderScript)) {
-                log.warn("Encode Script not found: " + deviceEui);
-                return;
-            }
-
-            int fPort = payload.getFPort().intValue();
-
-            String encodedData = CodecExecutor.runEncode(encoderScript, fPort, jsonData);
-            log.debug("Downlink encoded data: " + encodedData);
-            if (!StringUtils.hasText(encodedData)) {
-                return;
-            }
-
-            gatewayRequester.downlink(payload.getGatewayEui(), deviceEui, fPort, encodedData);
-
-        });
+        // downlinks are queued by gateway, only property writes could be coalesced. Errors are thrown to the caller
+        // if the downlinks are sent right away, queued downlinks are not waited for and their errors are only logged.
+        boolean coalesce = ExchangeEvent.EventType.UPDATE_PROPERTY.equals(event.getEventType());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        devicePayloadMap.forEach((deviceEui, payload) -> futures.add(downlinkScheduler.submit(
+                payload.getGatewayEui(), deviceEui, payload.getDeviceKey(), payload.getFPort().intValue(), payload.getPayload(), coalesce)));
+        if (!downlinkScheduler.isQueued()) {
+            futures.forEach(MsGwMqttUtil::join);
+        }
     }
 
     private Map<String, DevicePayload> getDevicePayloadMap(ExchangeEvent event) {
@@ -249,7 +326,6 @@ public class DeviceService {
         Map<String, Entity> entityMap = event.getPayload().getExchangeEntities();
 
         Map<String, DevicePayload> devicePayloadMap = new HashMap<>();
-        Map<String, String> deviceToGatewayMap = msGwEntityService.getDeviceGatewayRelation();
         // split by device
         allPayloads.forEach((String entityKey, Object entityValue) -> {
             Entity entity = entityMap.get(entityKey);
@@ -262,7 +338,7 @@ public class DeviceService {
             DevicePayload devicePayload = devicePayloadMap.computeIfAbsent(deviceEui, k -> new DevicePayload());
             devicePayload.setDeviceKey(deviceKey);
 
-            devicePayload.setGatewayEui(deviceToGatewayMap.get(deviceEui));
+            devicePayload.setGatewayEui(gatewayRelationIndex.getGatewayEui(deviceEui));
             if (devicePayload.getGatewayEui() == null) {
                 throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Cannot find gateway for device: " + deviceKey).build();
             }
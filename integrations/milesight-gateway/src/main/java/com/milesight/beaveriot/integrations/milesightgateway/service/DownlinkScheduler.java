@@ -0,0 +1,383 @@
+package com.milesight.beaveriot.integrations.milesightgateway.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.milesight.beaveriot.base.exception.ServiceException;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodecHandle;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.EntityValueConverter;
+import com.milesight.beaveriot.integrations.milesightgateway.model.MilesightGatewayErrorCode;
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.DownlinkQueueMetrics;
+import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayRequester;
+import com.milesight.beaveriot.integrations.milesightgateway.util.TokenBucket;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DownlinkScheduler class.
+ *
+ * Downlinks are queued by gateway. Property writes to the same device within the coalescing window are merged into one
+ * encoded frame, and frames are sent to each gateway at the rate of its token bucket. Service calls are never merged.
+ * Both coalescing and rate limiting are off by default, then a downlink is sent right away on the submitting thread.
+ * <p>
+ * The future of a submitted downlink completes when its frame is sent, encode and publish errors fail it.
+ * Downlinks pending for a removed gateway are failed and their scheduled sending is cancelled.
+ *
+ * @author simon
+ * @date 2025/3/31
+ */
+@Component("milesightGatewayDownlinkScheduler")
+@Slf4j
+public class DownlinkScheduler {
+    @Autowired
+    MsGwEntityService msGwEntityService;
+
+    @Autowired
+    GatewayRequester gatewayRequester;
+
+    /**
+     * Window to merge property writes to the same device, non-positive means no coalescing.
+     */
+    @Value("${milesight-gateway.downlink.coalesce-millis:0}")
+    private long coalesceMillis;
+
+    /**
+     * Downlinks per second of each gateway, non-positive means unlimited.
+     */
+    @Value("${milesight-gateway.downlink.rate-per-second:0}")
+    private double ratePerSecond;
+
+    @Value("${milesight-gateway.downlink.burst:5}")
+    private int burst;
+
+    @Value("${milesight-gateway.downlink.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${milesight-gateway.downlink.threads:2}")
+    private int threads;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private final Map<String, GatewayQueue> gatewayQueueMap = new ConcurrentHashMap<>();
+
+    private static class Downlink {
+        private final String deviceEui;
+
+        private final String deviceKey;
+
+        private int fPort;
+
+        private final Map<String, Object> payload = new LinkedHashMap<>();
+
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private ScheduledFuture<?> flushTask;
+
+        Downlink(String deviceEui, String deviceKey) {
+            this.deviceEui = deviceEui;
+            this.deviceKey = deviceKey;
+        }
+    }
+
+    private class GatewayQueue {
+        private final String tenantId;
+
+        private final String gatewayEui;
+
+        private final TokenBucket tokenBucket = new TokenBucket(ratePerSecond, burst);
+
+        /**
+         * downlinks in the coalescing window by device eui
+         */
+        private final Map<String, Downlink> coalescing = new HashMap<>();
+
+        private final Queue<Downlink> ready = new ArrayDeque<>();
+
+        private boolean draining = false;
+
+        private ScheduledFuture<?> drainTask;
+
+        private boolean removed = false;
+
+        private long sent = 0;
+
+        private long coalesced = 0;
+
+        private long dropped = 0;
+
+        private long failed = 0;
+
+        GatewayQueue(String tenantId, String gatewayEui) {
+            this.tenantId = tenantId;
+            this.gatewayEui = gatewayEui;
+        }
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            synchronized (this) {
+                if (scheduler == null) {
+                    AtomicInteger threadIndex = new AtomicInteger();
+                    scheduler = new ScheduledThreadPoolExecutor(Math.max(1, threads), runnable -> {
+                        Thread thread = new Thread(runnable, "msgw-downlink-" + threadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+
+        return scheduler;
+    }
+
+    private String getQueueKey(String tenantId, String gatewayEui) {
+        return tenantId + ":" + gatewayEui;
+    }
+
+    /**
+     * Whether downlinks could wait in the queue, i.e. coalescing or rate limiting is on.
+     * Otherwise a downlink is sent before {@link #submit} returns, unless another thread is sending to the gateway.
+     */
+    public boolean isQueued() {
+        return coalesceMillis > 0 || ratePerSecond > 0;
+    }
+
+    /**
+     * Schedule the entity values to be encoded and sent to the device.
+     *
+     * @param payload entity values by entity key
+     * @param coalesce merge with other writes to the device in the coalescing window, for property writes only
+     * @return completes when the frame is sent, merged writes share the same future
+     */
+    public CompletableFuture<Void> submit(String gatewayEui, String deviceEui, String deviceKey, int fPort, Map<String, Object> payload, boolean coalesce) {
+        String tenantId = TenantContext.getTenantId();
+        GatewayQueue gatewayQueue = gatewayQueueMap.computeIfAbsent(getQueueKey(tenantId, gatewayEui), k -> new GatewayQueue(tenantId, gatewayEui));
+        Downlink downlink;
+        synchronized (gatewayQueue) {
+            if (gatewayQueue.removed) {
+                return CompletableFuture.failedFuture(newGatewayRemovedException(gatewayEui));
+            }
+
+            if (!coalesce || coalesceMillis <= 0) {
+                // a pending write of the device goes first to keep the order
+                Downlink pending = gatewayQueue.coalescing.remove(deviceEui);
+                if (pending != null) {
+                    pending.flushTask.cancel(false);
+                }
+                enqueue(gatewayQueue, pending);
+                downlink = new Downlink(deviceEui, deviceKey);
+                downlink.fPort = fPort;
+                downlink.payload.putAll(payload);
+                enqueue(gatewayQueue, downlink);
+            } else {
+                downlink = gatewayQueue.coalescing.get(deviceEui);
+                if (downlink != null) {
+                    downlink.fPort = fPort;
+                    downlink.payload.putAll(payload);
+                    gatewayQueue.coalesced++;
+                    return downlink.result;
+                }
+
+                downlink = new Downlink(deviceEui, deviceKey);
+                downlink.fPort = fPort;
+                downlink.payload.putAll(payload);
+                gatewayQueue.coalescing.put(deviceEui, downlink);
+                downlink.flushTask = getScheduler().schedule(() -> flush(gatewayQueue, deviceEui), coalesceMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (!coalesce || coalesceMillis <= 0) {
+            drain(gatewayQueue);
+        }
+
+        return downlink.result;
+    }
+
+    private void flush(GatewayQueue gatewayQueue, String deviceEui) {
+        synchronized (gatewayQueue) {
+            if (gatewayQueue.removed) {
+                return;
+            }
+
+            enqueue(gatewayQueue, gatewayQueue.coalescing.remove(deviceEui));
+        }
+
+        drain(gatewayQueue);
+    }
+
+    /**
+     * Add the downlink to the ready queue, the oldest one is dropped if the queue is full. Call with the queue locked.
+     */
+    private void enqueue(GatewayQueue gatewayQueue, Downlink downlink) {
+        if (downlink == null) {
+            return;
+        }
+
+        if (gatewayQueue.ready.size() >= queueCapacity) {
+            Downlink droppedDownlink = gatewayQueue.ready.poll();
+            gatewayQueue.dropped++;
+            log.warn("Downlink queue of gateway {} is full, drop downlink of {}", gatewayQueue.gatewayEui, droppedDownlink.deviceEui);
+            droppedDownlink.result.completeExceptionally(ServiceException
+                    .with(MilesightGatewayErrorCode.DOWNLINK_QUEUE_FULL)
+                    .args(Map.of("eui", gatewayQueue.gatewayEui))
+                    .build());
+        }
+
+        gatewayQueue.ready.add(downlink);
+    }
+
+    /**
+     * Send ready downlinks while tokens are available, otherwise retry when the next token is refilled.
+     */
+    private void drain(GatewayQueue gatewayQueue) {
+        synchronized (gatewayQueue) {
+            if (gatewayQueue.draining || gatewayQueue.removed) {
+                return;
+            }
+
+            gatewayQueue.draining = true;
+        }
+
+        while (true) {
+            Downlink next;
+            synchronized (gatewayQueue) {
+                if (gatewayQueue.ready.isEmpty() || gatewayQueue.removed) {
+                    gatewayQueue.draining = false;
+                    return;
+                }
+
+                long waitNanos = gatewayQueue.tokenBucket.tryAcquire();
+                if (waitNanos > 0) {
+                    gatewayQueue.draining = false;
+                    if (gatewayQueue.drainTask == null) {
+                        gatewayQueue.drainTask = getScheduler().schedule(() -> {
+                            synchronized (gatewayQueue) {
+                                gatewayQueue.drainTask = null;
+                            }
+                            drain(gatewayQueue);
+                        }, waitNanos, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+
+                next = gatewayQueue.ready.poll();
+            }
+
+            boolean success = send(gatewayQueue, next);
+            synchronized (gatewayQueue) {
+                if (success) {
+                    gatewayQueue.sent++;
+                } else {
+                    gatewayQueue.failed++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode and send the downlink. Nothing is sent without an encoder or encoded data, as before the scheduler,
+     * but the downlink is not counted as sent.
+     */
+    private boolean send(GatewayQueue gatewayQueue, Downlink downlink) {
+        // drained on the submitting thread as well, whose tenant must be kept
+        String previousTenantId = TenantContext.tryGetTenantId().orElse(null);
+        try {
+            TenantContext.setTenantId(gatewayQueue.tenantId);
+            JsonNode jsonData = EntityValueConverter.convertToJson(downlink.deviceKey, downlink.payload);
+            log.debug("Downlink json data: " + jsonData);
+
+            DeviceCodecHandle encoder = msGwEntityService.getDeviceEncoder(downlink.deviceEui);
+            if (encoder == null) {
+                log.warn("Encode Script not found: " + downlink.deviceEui);
+                downlink.result.complete(null);
+                return false;
+            }
+
+            String encodedData = encoder.encode(downlink.fPort, jsonData);
+            log.debug("Downlink encoded data: " + encodedData);
+            if (!StringUtils.hasText(encodedData)) {
+                downlink.result.complete(null);
+                return false;
+            }
+
+            gatewayRequester.downlink(gatewayQueue.gatewayEui, downlink.deviceEui, downlink.fPort, encodedData);
+            downlink.result.complete(null);
+            return true;
+        } catch (Exception e) {
+            log.error("Downlink to " + downlink.deviceEui + " failed: " + e.getMessage());
+            downlink.result.completeExceptionally(e);
+            return false;
+        } finally {
+            if (previousTenantId == null) {
+                TenantContext.clear();
+            } else {
+                TenantContext.setTenantId(previousTenantId);
+            }
+        }
+    }
+
+    /**
+     * Drop the queue of the removed gateway, pending downlinks are failed and no longer sent.
+     */
+    public void remove(String tenantId, String gatewayEui) {
+        GatewayQueue gatewayQueue = gatewayQueueMap.remove(getQueueKey(tenantId, gatewayEui));
+        if (gatewayQueue == null) {
+            return;
+        }
+
+        List<Downlink> pendingDownlinks = new ArrayList<>();
+        synchronized (gatewayQueue) {
+            gatewayQueue.removed = true;
+            if (gatewayQueue.drainTask != null) {
+                gatewayQueue.drainTask.cancel(false);
+                gatewayQueue.drainTask = null;
+            }
+
+            gatewayQueue.coalescing.values().forEach(downlink -> downlink.flushTask.cancel(false));
+            pendingDownlinks.addAll(gatewayQueue.coalescing.values());
+            pendingDownlinks.addAll(gatewayQueue.ready);
+            gatewayQueue.coalescing.clear();
+            gatewayQueue.ready.clear();
+        }
+
+        pendingDownlinks.forEach(downlink -> downlink.result.completeExceptionally(newGatewayRemovedException(gatewayEui)));
+    }
+
+    private static ServiceException newGatewayRemovedException(String gatewayEui) {
+        return ServiceException
+                .with(MilesightGatewayErrorCode.GATEWAY_REMOVED)
+                .args(Map.of("eui", gatewayEui))
+                .build();
+    }
+
+    public List<DownlinkQueueMetrics> getMetrics() {
+        String tenantId = TenantContext.getTenantId();
+        List<DownlinkQueueMetrics> metricsList = new ArrayList<>();
+        gatewayQueueMap.values().stream().filter(gatewayQueue -> gatewayQueue.tenantId.equals(tenantId)).forEach(gatewayQueue -> {
+            DownlinkQueueMetrics metrics = new DownlinkQueueMetrics();
+            synchronized (gatewayQueue) {
+                metrics.setGatewayEui(gatewayQueue.gatewayEui);
+                metrics.setQueued(gatewayQueue.ready.size());
+                metrics.setCoalescing(gatewayQueue.coalescing.size());
+                metrics.setSent(gatewayQueue.sent);
+                metrics.setCoalesced(gatewayQueue.coalesced);
+                metrics.setDropped(gatewayQueue.dropped);
+                metrics.setFailed(gatewayQueue.failed);
+            }
+            metricsList.add(metrics);
+        });
+
+        return metricsList;
+    }
+}
@@ -0,0 +1,118 @@
+package com.milesight.beaveriot.integrations.milesightgateway.service;
+
+import com.milesight.beaveriot.base.exception.ServiceException;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.model.GatewayMetadata;
+import com.milesight.beaveriot.integrations.milesightgateway.model.MilesightGatewayErrorCode;
+import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListResponse;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.GatewayStatusTracker;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttUtil;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.model.MqttResponse;
+import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayRequester;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GatewayHealthCache class.
+ *
+ * Reachability and metadata of gateways without a round-trip for every operation.
+ * A gateway seen by the status tracker (uplinks, responses and connect events) within the seen period is taken as
+ * reachable, and a gateway known to be offline fails fast. Otherwise the device list api is requested once,
+ * and its applications and profiles are cached for a short period.
+ *
+ * @author simon
+ * @date 2025/4/3
+ */
+@Component("milesightGatewayHealthCache")
+public class GatewayHealthCache {
+    @Autowired
+    GatewayStatusTracker gatewayStatusTracker;
+
+    @Autowired
+    GatewayRequester gatewayRequester;
+
+    @Value("${milesight-gateway.health.seen-period-millis:30000}")
+    private long seenPeriodMillis;
+
+    @Value("${milesight-gateway.health.metadata-ttl-millis:30000}")
+    private long metadataTtlMillis;
+
+    private final Map<String, GatewayMetadata> metadataMap = new ConcurrentHashMap<>();
+
+    private String getCacheKey(String tenantId, String gatewayEui) {
+        return tenantId + ":" + gatewayEui;
+    }
+
+    /**
+     * Make sure the gateway is reachable, or throw.
+     */
+    public void ensureReachable(String gatewayEui) {
+        MsGwMqttUtil.join(ensureReachableAsync(TenantContext.getTenantId(), gatewayEui));
+    }
+
+    public CompletableFuture<Void> ensureReachableAsync(String tenantId, String gatewayEui) {
+        if (gatewayStatusTracker.isOffline(tenantId, gatewayEui)) {
+            return CompletableFuture.failedFuture(ServiceException.with(MilesightGatewayErrorCode.GATEWAY_OFFLINE).args(Map.of("eui", gatewayEui)).build());
+        }
+
+        if (gatewayStatusTracker.isSeenWithin(tenantId, gatewayEui, seenPeriodMillis) || getFreshMetadata(tenantId, gatewayEui) != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return fetchMetadataAsync(tenantId, gatewayEui).thenApply(metadata -> null);
+    }
+
+    /**
+     * Get applications and profiles of the gateway, which may be cached.
+     *
+     * @param refresh ignore the cached metadata
+     */
+    public GatewayMetadata getMetadata(String gatewayEui, boolean refresh) {
+        String tenantId = TenantContext.getTenantId();
+        if (gatewayStatusTracker.isOffline(tenantId, gatewayEui)) {
+            throw ServiceException.with(MilesightGatewayErrorCode.GATEWAY_OFFLINE).args(Map.of("eui", gatewayEui)).build();
+        }
+
+        GatewayMetadata metadata = refresh ? null : getFreshMetadata(tenantId, gatewayEui);
+        if (metadata != null) {
+            return metadata;
+        }
+
+        return MsGwMqttUtil.join(fetchMetadataAsync(tenantId, gatewayEui));
+    }
+
+    private GatewayMetadata getFreshMetadata(String tenantId, String gatewayEui) {
+        GatewayMetadata metadata = metadataMap.get(getCacheKey(tenantId, gatewayEui));
+        if (metadata == null || System.currentTimeMillis() - metadata.getFetchedAt() > metadataTtlMillis) {
+            return null;
+        }
+
+        return metadata;
+    }
+
+    private CompletableFuture<GatewayMetadata> fetchMetadataAsync(String tenantId, String gatewayEui) {
+        return gatewayRequester.requestDeviceListAsync(tenantId, gatewayEui, 0, 1, null).thenApply(response -> {
+            GatewayMetadata metadata = toMetadata(response);
+            metadataMap.put(getCacheKey(tenantId, gatewayEui), metadata);
+            return metadata;
+        });
+    }
+
+    private static GatewayMetadata toMetadata(MqttResponse<DeviceListResponse> response) {
+        GatewayMetadata metadata = new GatewayMetadata();
+        metadata.setAppResult(response.getSuccessBody().getAppResult());
+        metadata.setProfileResult(response.getSuccessBody().getProfileResult());
+        metadata.setUsername(response.getCtx() == null ? null : response.getCtx().getUsername());
+        metadata.setFetchedAt(System.currentTimeMillis());
+        return metadata;
+    }
+
+    public void invalidate(String tenantId, String gatewayEui) {
+        metadataMap.remove(getCacheKey(tenantId, gatewayEui));
+    }
+}
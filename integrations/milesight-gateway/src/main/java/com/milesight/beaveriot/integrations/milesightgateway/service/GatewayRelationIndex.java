@@ -0,0 +1,207 @@
+package com.milesight.beaveriot.integrations.milesightgateway.service;
+
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.ClusterNodeTracker;
+import com.milesight.beaveriot.pubsub.MessagePubSub;
+import com.milesight.beaveriot.pubsub.api.annotation.MessageListener;
+import com.milesight.beaveriot.pubsub.api.message.RemoteBroadcastMessage;
+import lombok.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * GatewayRelationIndex class.
+ *
+ * In-memory bidirectional index of the gateway device relation, built from the persisted relation.
+ * Local changes are applied incrementally once the surrounding transaction is committed, so a rollback leaves the index
+ * untouched. Other nodes are notified to rebuild their index lazily, the notifying node ignores its own notification.
+ *
+ * @author simon
+ * @date 2025/3/25
+ */
+@Component("milesightGatewayRelationIndex")
+@Slf4j
+public class GatewayRelationIndex {
+    @Autowired
+    MsGwEntityService msGwEntityService;
+
+    @Autowired
+    MessagePubSub messagePubSub;
+
+    @Autowired
+    ClusterNodeTracker clusterNodeTracker;
+
+    private final Map<String, TenantRelation> tenantRelationMap = new ConcurrentHashMap<>();
+
+    private static class TenantRelation {
+        private final Map<String, String> deviceToGateway = new ConcurrentHashMap<>();
+
+        /**
+         * gateway mapping to its devices, the latest added device comes first. Lists are immutable and replaced on change.
+         */
+        private final Map<String, List<String>> gatewayToDevices = new ConcurrentHashMap<>();
+    }
+
+    private TenantRelation getTenantRelation() {
+        String tenantId = TenantContext.getTenantId();
+        TenantRelation relation = tenantRelationMap.get(tenantId);
+        if (relation != null) {
+            return relation;
+        }
+
+        // build outside of the map, reading the relation could take long and even migrate the legacy relation
+        relation = buildTenantRelation();
+        TenantRelation existed = tenantRelationMap.putIfAbsent(tenantId, relation);
+        return existed != null ? existed : relation;
+    }
+
+    private TenantRelation buildTenantRelation() {
+        TenantRelation relation = new TenantRelation();
+        msGwEntityService.getGatewayRelation().forEach((gatewayEui, deviceEuiList) -> {
+            relation.gatewayToDevices.put(gatewayEui, List.copyOf(deviceEuiList));
+            deviceEuiList.forEach(deviceEui -> relation.deviceToGateway.put(deviceEui, gatewayEui));
+        });
+        return relation;
+    }
+
+    public String getGatewayEui(String deviceEui) {
+        return getTenantRelation().deviceToGateway.get(deviceEui);
+    }
+
+    /**
+     * @return devices of the gateway, null if the gateway does not exist
+     */
+    public List<String> getGatewayDevices(String gatewayEui) {
+        return getTenantRelation().gatewayToDevices.get(gatewayEui);
+    }
+
+    public List<String> getGatewayEuiList() {
+        return List.copyOf(getTenantRelation().gatewayToDevices.keySet());
+    }
+
+    public boolean containsGateway(String gatewayEui) {
+        return getTenantRelation().gatewayToDevices.containsKey(gatewayEui);
+    }
+
+    public void putGateway(String gatewayEui) {
+        applyAfterCommit(relation -> relation.gatewayToDevices.putIfAbsent(gatewayEui, List.of()));
+    }
+
+    public void removeGateways(Collection<String> gatewayEuiList) {
+        applyAfterCommit(relation -> gatewayEuiList.forEach(gatewayEui -> {
+            List<String> deviceEuiList = relation.gatewayToDevices.remove(gatewayEui);
+            if (deviceEuiList != null) {
+                deviceEuiList.forEach(deviceEui -> relation.deviceToGateway.remove(deviceEui, gatewayEui));
+            }
+        }));
+    }
+
+    public void addDevices(String gatewayEui, List<String> deviceEuiList) {
+        applyAfterCommit(relation -> addDevices(relation, gatewayEui, deviceEuiList));
+    }
+
+    private static void addDevices(TenantRelation relation, String gatewayEui, List<String> deviceEuiList) {
+        relation.gatewayToDevices.compute(gatewayEui, (k, devices) -> {
+            // the index may have been built from the committed relation already
+            Set<String> existed = devices == null ? Set.of() : new HashSet<>(devices);
+            List<String> newDevices = new ArrayList<>(deviceEuiList.size() + existed.size());
+            for (int i = deviceEuiList.size() - 1; i >= 0; i--) {
+                if (!existed.contains(deviceEuiList.get(i))) {
+                    newDevices.add(deviceEuiList.get(i));
+                }
+            }
+
+            if (devices != null) {
+                newDevices.addAll(devices);
+            }
+
+            return Collections.unmodifiableList(newDevices);
+        });
+        deviceEuiList.forEach(deviceEui -> relation.deviceToGateway.put(deviceEui, gatewayEui));
+    }
+
+    public void removeDevices(String gatewayEui, Collection<String> deviceEuiList) {
+        Set<String> toRemove = new HashSet<>(deviceEuiList);
+        applyAfterCommit(relation -> {
+            relation.gatewayToDevices.computeIfPresent(gatewayEui, (k, devices) -> devices.stream()
+                    .filter(deviceEui -> !toRemove.contains(deviceEui))
+                    .toList());
+            toRemove.forEach(deviceEui -> relation.deviceToGateway.remove(deviceEui, gatewayEui));
+        });
+    }
+
+    /**
+     * Apply the change to the index of current tenant after the transaction is committed, or at once without a transaction.
+     * Other nodes are notified after the commit as well.
+     */
+    private void applyAfterCommit(Consumer<TenantRelation> change) {
+        String tenantId = TenantContext.getTenantId();
+        notifyChanged(tenantId);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            applyChange(tenantId, change);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                applyChange(tenantId, change);
+            }
+        });
+    }
+
+    private void applyChange(String tenantId, Consumer<TenantRelation> change) {
+        TenantRelation relation = tenantRelationMap.get(tenantId);
+        if (relation == null) {
+            // not built yet, the next access builds it from the committed relation
+            return;
+        }
+
+        change.accept(relation);
+    }
+
+    /**
+     * Drop the index of current tenant and build it again from the persisted relation.
+     */
+    public void rebuild() {
+        String tenantId = TenantContext.getTenantId();
+        tenantRelationMap.put(tenantId, buildTenantRelation());
+    }
+
+    private void notifyChanged(String tenantId) {
+        messagePubSub.publishAfterCommit(GatewayRelationChangeEvent.builder()
+                .tenantId(tenantId)
+                .originNodeId(clusterNodeTracker.getNodeId())
+                .build());
+    }
+
+    @MessageListener
+    public void onGatewayRelationChange(GatewayRelationChangeEvent event) {
+        if (clusterNodeTracker.getNodeId().equals(event.getOriginNodeId())) {
+            // already applied locally
+            return;
+        }
+
+        // rebuild lazily at the next access
+        tenantRelationMap.remove(event.getTenantId());
+    }
+
+    @Data
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class GatewayRelationChangeEvent extends RemoteBroadcastMessage {
+        private String tenantId;
+
+        private String originNodeId;
+    }
+}
@@ -14,6 +14,7 @@ import com.milesight.beaveriot.context.integration.model.*;
 import com.milesight.beaveriot.context.integration.model.event.DeviceEvent;
 import com.milesight.beaveriot.context.integration.model.event.ExchangeEvent;
 import com.milesight.beaveriot.context.integration.wrapper.AnnotatedTemplateEntityWrapper;
+import com.milesight.beaveriot.context.security.TenantContext;
 import com.milesight.beaveriot.eventbus.annotations.EventSubscribe;
 import com.milesight.beaveriot.eventbus.api.Event;
 import com.milesight.beaveriot.integrations.milesightgateway.entity.GatewayEntities;
@@ -22,10 +23,11 @@ import com.milesight.beaveriot.integrations.milesightgateway.model.*;
 import com.milesight.beaveriot.integrations.milesightgateway.model.request.FetchGatewayCredentialRequest;
 import com.milesight.beaveriot.integrations.milesightgateway.model.response.GatewayDeviceListItem;
 import com.milesight.beaveriot.integrations.milesightgateway.model.response.MqttCredentialResponse;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.GatewayRequestWindow;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.DeviceLastSeenTracker;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.GatewayStatusTracker;
 import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttUtil;
-import com.milesight.beaveriot.integrations.milesightgateway.mqtt.model.MqttResponse;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayRequester;
-import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListResponse;
 import com.milesight.beaveriot.integrations.milesightgateway.model.request.AddGatewayRequest;
 import com.milesight.beaveriot.integrations.milesightgateway.model.response.ConnectionValidateResponse;
 import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
@@ -34,7 +36,7 @@ import com.milesight.beaveriot.integrations.milesightgateway.util.LockConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
 
@@ -76,7 +78,25 @@ public class GatewayService {
     CredentialsServiceProvider credentialsServiceProvider;
 
     @Autowired
-    TaskExecutor taskExecutor;
+    DownlinkScheduler downlinkScheduler;
+
+    @Value("${milesight-gateway.delete.chunk-size:100}")
+    private int deleteChunkSize;
+
+    @Autowired
+    GatewayStatusTracker gatewayStatusTracker;
+
+    @Autowired
+    DeviceLastSeenTracker deviceLastSeenTracker;
+
+    @Autowired
+    GatewayRequestWindow gatewayRequestWindow;
+
+    @Autowired
+    GatewayRelationIndex gatewayRelationIndex;
+
+    @Autowired
+    GatewayHealthCache gatewayHealthCache;
 
     private final ObjectMapper json = GatewayString.jsonInstance();
 
@@ -124,21 +144,21 @@ public class GatewayService {
         String eui = GatewayString.standardizeEUI(inputEui);
         validateGatewayInfo(eui);
         ConnectionValidateResponse result = new ConnectionValidateResponse();
-        MqttResponse<DeviceListResponse> response = gatewayRequester.requestDeviceList(eui, 0, 1, null);
-        DeviceListResponse responseData = response.getSuccessBody();
-        if (ObjectUtils.isEmpty(responseData.getAppResult())) {
+        // always ask the gateway, the username of a cached response may not prove the connection of the credential
+        GatewayMetadata metadata = gatewayHealthCache.getMetadata(eui, true);
+        if (ObjectUtils.isEmpty(metadata.getAppResult())) {
             throw ServiceException.with(MilesightGatewayErrorCode.GATEWAY_NO_APPLICATION).build();
         }
 
-        if (ObjectUtils.isEmpty(responseData.getProfileResult())) {
+        if (ObjectUtils.isEmpty(metadata.getProfileResult())) {
             throw ServiceException.with(MilesightGatewayErrorCode.GATEWAY_NO_DEVICE_PROFILE).build();
         }
 
-        result.setAppResult(responseData.getAppResult());
-        result.setProfileResult(responseData.getProfileResult());
+        result.setAppResult(metadata.getAppResult());
+        result.setProfileResult(metadata.getProfileResult());
 
         Optional<Credentials> credentials = credentialsServiceProvider.getCredentials(Long.valueOf(credentialId));
-        if (credentials.isEmpty() || !credentials.get().getAccessKey().equals(response.getCtx().getUsername())) {
+        if (credentials.isEmpty() || !credentials.get().getAccessKey().equals(metadata.getUsername())) {
             throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "Invalid credential: " + credentialId).build();
         }
 
@@ -155,8 +175,7 @@ public class GatewayService {
     }
 
     public List<Device> getAllGateways() {
-        List<String> gatewayEuiList = msGwEntityService.getGatewayRelation().keySet().stream().toList();
-        return this.getGatewayByEuiList(gatewayEuiList);
+        return this.getGatewayByEuiList(gatewayRelationIndex.getGatewayEuiList());
     }
 
     private Entity getAddDeviceGatewayEntity() {
@@ -219,9 +238,9 @@ public class GatewayService {
         }
 
         // check duplicate
-        Map<String, List<String>> gatewayRelation = msGwEntityService.getGatewayRelation();
+        List<String> gatewayEuiList = msGwEntityService.getGatewayEuiList();
 
-        if (gatewayRelation.keySet().stream().anyMatch(gatewayEui -> gatewayEui.equals(newGatewayData.getEui()))) {
+        if (gatewayEuiList.contains(newGatewayData.getEui())) {
             throw ServiceException.with(MilesightGatewayErrorCode.DUPLICATED_GATEWAY_EUI).args(Map.of("eui", newGatewayData.getEui())).build();
         }
 
@@ -234,11 +253,13 @@ public class GatewayService {
                 .build();
         deviceServiceProvider.save(gateway);
         new AnnotatedTemplateEntityWrapper<GatewayEntities>(gateway.getIdentifier()).saveValue(GatewayEntities::getStatus, DeviceConnectStatus.ONLINE);
+        gatewayStatusTracker.confirm(TenantContext.getTenantId(), newGatewayData.getEui(), DeviceConnectStatus.ONLINE);
 
         // add to relation
-
-        gatewayRelation.put(newGatewayData.getEui(), new ArrayList<>());
-        msGwEntityService.saveGatewayRelation(gatewayRelation);
+        msGwEntityService.saveGatewayDevices(newGatewayData.getEui(), new ArrayList<>());
+        gatewayEuiList.add(newGatewayData.getEui());
+        msGwEntityService.saveGatewayEuiList(gatewayEuiList);
+        gatewayRelationIndex.putGateway(newGatewayData.getEui());
 
         // add to add device gateway list
         self().putAddDeviceGatewayEui(List.of(gateway));
@@ -249,13 +270,14 @@ public class GatewayService {
 
     @DistributedLock(name = LockConstants.UPDATE_GATEWAY_DEVICE_RELATION_LOCK, waitForLock = "10s")
     public void batchDeleteGateway(List<String> gatewayEuiList) {
-        Map<String, List<String>> gatewayMap = msGwEntityService.getGatewayRelation();
+        List<String> existedGatewayEuiList = msGwEntityService.getGatewayEuiList();
 
         // find gateway that have devices then delete gateways and devices
         List<String> deviceEuiList = new ArrayList<>();
         for (String inputEUI : gatewayEuiList) {
             String gatewayEui = GatewayString.standardizeEUI(inputEUI);
-            List<String> gatewayDeviceEuiList = gatewayMap.remove(gatewayEui);
+            existedGatewayEuiList.remove(gatewayEui);
+            List<String> gatewayDeviceEuiList = msGwEntityService.getGatewayDevices(gatewayEui);
             if (gatewayDeviceEuiList == null) {
                 log.error("Gateway Relation not found: {}", gatewayEui);
                 continue;
@@ -271,38 +293,67 @@ public class GatewayService {
         for (Device device : deviceList) {
             GatewayDeviceData deviceData = deviceService.getDeviceData(device);
             gatewayDeviceToDelete.computeIfAbsent(deviceData.getGatewayEUI(), k -> new ArrayList<>()).add(deviceData.getEui());
-            deviceServiceProvider.deleteById(device.getId());
         }
 
-        List<CompletableFuture<Void>> futures = gatewayDeviceToDelete.entrySet().stream().map(entry -> CompletableFuture.runAsync(() -> {
-            String gatewayEui = entry.getKey();
-            try {
-                // check if the gateway is connected.
-                gatewayRequester.requestDeviceList(gatewayEui, 0, 1, null);
-                // delete devices
-                gatewayRequester.requestDeleteDevice(gatewayEui, entry.getValue());
-            } catch (Exception e) {
-                log.error("Delete device at gateway error: {} {}", gatewayEui, e.getMessage());
-            }
-        }, taskExecutor)).toList();
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                .thenApply(v -> futures.stream().map(CompletableFuture::join))
-                .join();
+        // delete devices at gateways, requests are pipelined by the request window of each gateway
+        String tenantId = TenantContext.getTenantId();
+        List<CompletableFuture<Void>> futures = gatewayDeviceToDelete.entrySet().stream()
+                .map(entry -> deleteGatewayDevicesAsync(tenantId, entry.getKey(), entry.getValue()))
+                .toList();
+
+        // delete local devices while waiting for gateways
+        deleteDevicesByChunk(deviceList, "devices");
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        msGwEntityService.invalidateDeviceCodec(deviceEuiList);
+        deviceLastSeenTracker.remove(tenantId, deviceEuiList);
 
         // delete gateway
         List<Device> gatewayList = getGatewayByEuiList(gatewayEuiList);
+        deleteDevicesByChunk(gatewayList, "gateways");
         for (Device gateway : gatewayList) {
-            // TODO: optimize to batch delete
-            deviceServiceProvider.deleteById(gateway.getId());
+            gatewayStatusTracker.remove(tenantId, getGatewayEui(gateway));
+            gatewayRequestWindow.remove(tenantId, getGatewayEui(gateway));
+            downlinkScheduler.remove(tenantId, getGatewayEui(gateway));
+            gatewayHealthCache.invalidate(tenantId, getGatewayEui(gateway));
         }
 
-        // save relation
-        msGwEntityService.saveGatewayRelation(gatewayMap);
+        // save relation, the device relation of each gateway was deleted with the gateway
+        msGwEntityService.saveGatewayEuiList(existedGatewayEuiList);
+        gatewayRelationIndex.removeGateways(gatewayEuiList.stream().map(GatewayString::standardizeEUI).toList());
 
         // delete gateway from add device gateway eui list
         self().removeAddDeviceGatewayEui(gatewayEuiList);
     }
 
+    /**
+     * Delete devices at the gateway. Errors are logged only, since the local devices would be deleted anyway.
+     */
+    private CompletableFuture<Void> deleteGatewayDevicesAsync(String tenantId, String gatewayEui, List<String> deviceEuiList) {
+        if (gatewayStatusTracker.isOffline(tenantId, gatewayEui)) {
+            log.warn("Skip deleting {} devices at offline gateway {}", deviceEuiList.size(), gatewayEui);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // check if the gateway is connected, unless it was seen recently. In case a large number of doomed-to-fail requests were sent.
+        return gatewayHealthCache.ensureReachableAsync(tenantId, gatewayEui)
+                .thenCompose(v -> gatewayRequester.requestDeleteDeviceAsync(tenantId, gatewayEui, deviceEuiList))
+                .exceptionally(e -> {
+                    log.error("Delete device at gateway error: {} {}", gatewayEui, e.getMessage());
+                    return null;
+                });
+    }
+
+    private void deleteDevicesByChunk(List<Device> devices, String name) {
+        for (int i = 0; i < devices.size(); i += deleteChunkSize) {
+            int end = Math.min(i + deleteChunkSize, devices.size());
+            deviceService.batchDeleteDevices(devices.subList(i, end));
+            if (devices.size() > deleteChunkSize) {
+                log.info("Deleting {}: {}/{}", name, end, devices.size());
+            }
+        }
+    }
+
     public String getGatewayEui(Device gateway) {
         String eui = (String) gateway.getAdditional().get(GatewayData.Fields.eui);
         if (eui == null) {
@@ -343,6 +394,8 @@ public class GatewayService {
             gatewayRequester.requestDeleteDevice(deviceData.getGatewayEUI(), List.of(deviceData.getEui()));
             deviceService.manageGatewayDevices(deviceData.getGatewayEUI(), deviceData.getEui(), GatewayDeviceOperation.DELETE);
             deviceServiceProvider.deleteById(device.getId());
+            msGwEntityService.invalidateDeviceCodec(List.of(deviceData.getEui()));
+            deviceLastSeenTracker.remove(TenantContext.getTenantId(), List.of(deviceData.getEui()));
         }
     }
 
@@ -372,33 +425,37 @@ public class GatewayService {
     }
 
     public Map<String, Object> doUpdateGatewayDevice(String gatewayEui, String deviceEui, String appId, Map<String, Object> toUpdate) {
-        if (toUpdate == null || toUpdate.isEmpty()) {
-            return Map.of();
-        }
+        return MsGwMqttUtil.join(doUpdateGatewayDeviceAsync(gatewayEui, deviceEui, appId, toUpdate));
+    }
 
-        Optional<Map<String, Object>> deviceItem = gatewayRequester.requestDeviceItemByEui(gatewayEui, deviceEui, appId);
-        if (deviceItem.isEmpty()) {
-            log.warn("Device " + deviceEui + " not found in gateway " + gatewayEui);
-            return Map.of();
+    public CompletableFuture<Map<String, Object>> doUpdateGatewayDeviceAsync(String gatewayEui, String deviceEui, String appId, Map<String, Object> toUpdate) {
+        if (toUpdate == null || toUpdate.isEmpty()) {
+            return CompletableFuture.completedFuture(Map.of());
         }
 
-        AtomicBoolean hasUpdate = new AtomicBoolean(false);
-        toUpdate.forEach((String key, Object value) -> {
-            if (deviceItem.get().get(key).equals(value)) {
-                return;
+        return gatewayRequester.requestDeviceItemByEuiAsync(gatewayEui, deviceEui, appId).thenCompose(deviceItem -> {
+            if (deviceItem.isEmpty()) {
+                log.warn("Device " + deviceEui + " not found in gateway " + gatewayEui);
+                return CompletableFuture.completedFuture(Map.of());
             }
 
-            deviceItem.get().put(key, value);
-            hasUpdate.set(true);
-        });
+            AtomicBoolean hasUpdate = new AtomicBoolean(false);
+            toUpdate.forEach((String key, Object value) -> {
+                if (deviceItem.get().get(key).equals(value)) {
+                    return;
+                }
 
-        if (!hasUpdate.get()) {
-            log.info("Device " + deviceEui + " not changed. And would not be updated.");
-            return deviceItem.get();
-        }
+                deviceItem.get().put(key, value);
+                hasUpdate.set(true);
+            });
+
+            if (!hasUpdate.get()) {
+                log.info("Device " + deviceEui + " not changed. And would not be updated.");
+                return CompletableFuture.completedFuture(deviceItem.get());
+            }
 
-        gatewayRequester.requestUpdateDeviceItem(gatewayEui, deviceEui, deviceItem.get());
-        return deviceItem.get();
+            return gatewayRequester.requestUpdateDeviceItemAsync(gatewayEui, deviceEui, deviceItem.get()).thenApply(v -> deviceItem.get());
+        });
     }
 
     private GatewayService self() {
@@ -406,7 +463,7 @@ public class GatewayService {
     }
 
     public List<GatewayDeviceListItem> getGatewayDevices(String eui) {
-        List<String> deviceEuiList = msGwEntityService.getGatewayRelation().get(GatewayString.standardizeEUI(eui));
+        List<String> deviceEuiList = gatewayRelationIndex.getGatewayDevices(GatewayString.standardizeEUI(eui));
         if (deviceEuiList == null) {
             return List.of();
         }
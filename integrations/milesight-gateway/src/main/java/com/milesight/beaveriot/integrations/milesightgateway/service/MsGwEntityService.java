@@ -2,23 +2,49 @@ package com.milesight.beaveriot.integrations.milesightgateway.service;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.milesight.beaveriot.base.annotations.shedlock.LockScope;
 import com.milesight.beaveriot.base.enums.ErrorCode;
 import com.milesight.beaveriot.base.exception.ServiceException;
+import com.milesight.beaveriot.context.api.DeviceServiceProvider;
 import com.milesight.beaveriot.context.api.EntityValueServiceProvider;
+import com.milesight.beaveriot.context.integration.model.AnnotatedTemplateEntityBuilder;
+import com.milesight.beaveriot.context.integration.model.Device;
 import com.milesight.beaveriot.context.integration.model.ExchangePayload;
 import com.milesight.beaveriot.context.integration.wrapper.AnnotatedEntityWrapper;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.CodecExecutor;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.CodecScript;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodec;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodecHandle;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodecRegistry;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodecVerifier;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.ResourceConstant;
+import com.milesight.beaveriot.integrations.milesightgateway.entity.GatewayEntities;
 import com.milesight.beaveriot.integrations.milesightgateway.entity.MsGwIntegrationEntities;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceConnectStatus;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceModelData;
+import com.milesight.beaveriot.integrations.milesightgateway.model.GatewayDeviceData;
+import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
+import com.milesight.beaveriot.integrations.milesightgateway.util.LockConstants;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.ResourceString;
+import com.milesight.beaveriot.pubsub.MessagePubSub;
+import com.milesight.beaveriot.pubsub.api.annotation.MessageListener;
+import com.milesight.beaveriot.pubsub.api.message.RemoteBroadcastMessage;
+import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import net.javacrumbs.shedlock.core.LockProvider;
+import net.javacrumbs.shedlock.core.SimpleLock;
+import net.javacrumbs.shedlock.spring.aop.ScopedLockConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -35,26 +61,166 @@ public class MsGwEntityService {
     @Autowired
     EntityValueServiceProvider entityValueServiceProvider;
 
+    @Autowired
+    MessagePubSub messagePubSub;
+
+    @Autowired
+    DeviceServiceProvider deviceServiceProvider;
+
+    @Autowired
+    LockProvider lockProvider;
+
+    /**
+     * Serve device models by native codecs found in the class path, instead of the codec scripts they replace.
+     */
+    @Value("${milesight-gateway.native-codec.enabled:false}")
+    private boolean nativeCodecEnabled;
+
+    /**
+     * tenants whose legacy gateway relation has been migrated
+     */
+    private final Set<String> migratedTenants = ConcurrentHashMap.newKeySet();
+
+    private static final int MAX_CACHED_DEVICE_CODECS = 10000;
+
+    /**
+     * tenant, device eui and codec entity identifier mapping to codec of the device
+     */
+    private final Map<String, DeviceCodecHandle> deviceCodecCache = new ConcurrentHashMap<>();
+
     /**
      * gateway mapping to devices
      */
     public Map<String, List<String>> getGatewayRelation() {
+        List<String> gatewayEuiList = getGatewayEuiList();
+        if (gatewayEuiList.isEmpty()) {
+            return new HashMap<>();
+        }
+
+        Map<String, String> relationKeyToGatewayEui = new HashMap<>();
+        gatewayEuiList.forEach(gatewayEui -> relationKeyToGatewayEui.put(GatewayString.getGatewayDeviceRelationKey(gatewayEui), gatewayEui));
+        Map<String, Object> relationValues = entityValueServiceProvider.findValuesByKeys(new ArrayList<>(relationKeyToGatewayEui.keySet()));
+
+        Map<String, List<String>> gatewayRelation = new HashMap<>();
+        relationKeyToGatewayEui.forEach((relationKey, gatewayEui) -> gatewayRelation.put(gatewayEui, parseEuiList((String) relationValues.get(relationKey))));
+        return gatewayRelation;
+    }
+
+    public List<String> getGatewayEuiList() {
+        migrateLegacyGatewayRelation();
+        return parseEuiList(findGatewayEuiListValue());
+    }
+
+    public void saveGatewayEuiList(List<String> gatewayEuiList) {
+        saveEuiList(MsGwIntegrationEntities.GATEWAY_LIST_KEY, gatewayEuiList);
+    }
+
+    /**
+     * @return devices of the gateway, null if the relation of the gateway does not exist
+     */
+    public List<String> getGatewayDevices(String gatewayEui) {
+        migrateLegacyGatewayRelation();
+        String relationStr = (String) entityValueServiceProvider.findValueByKey(GatewayString.getGatewayDeviceRelationKey(gatewayEui));
+        if (relationStr == null) {
+            return null;
+        }
+
+        return parseEuiList(relationStr);
+    }
+
+    public void saveGatewayDevices(String gatewayEui, List<String> deviceEuiList) {
+        saveEuiList(GatewayString.getGatewayDeviceRelationKey(gatewayEui), deviceEuiList);
+    }
+
+    private String findGatewayEuiListValue() {
+        return (String) entityValueServiceProvider.findValueByKey(MsGwIntegrationEntities.GATEWAY_LIST_KEY);
+    }
+
+    private List<String> parseEuiList(String euiListStr) {
+        if (!StringUtils.hasText(euiListStr)) {
+            return new ArrayList<>();
+        }
+
+        try {
+            return json.readValue(euiListStr, new TypeReference<>() {});
+        } catch (Exception e) {
+            throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Broken gateway relation data: " + euiListStr).build();
+        }
+    }
+
+    private void saveEuiList(String key, List<String> euiList) {
+        try {
+            entityValueServiceProvider.saveLatestValues(ExchangePayload.create(Map.of(key, json.writeValueAsString(euiList))));
+        } catch (Exception e) {
+            throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Save relation error: " + e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Split the legacy relation of all gateways into the gateway list and the device relation of each gateway.
+     * The gateway list is written at last, so an interrupted migration would be done again.
+     */
+    private void migrateLegacyGatewayRelation() {
+        String tenantId = TenantContext.getTenantId();
+        if (migratedTenants.contains(tenantId)) {
+            return;
+        }
+
+        if (findGatewayEuiListValue() == null) {
+            SimpleLock lock = lockProvider.lock(ScopedLockConfiguration.builder(LockScope.TENANT)
+                    .name(LockConstants.MIGRATE_GATEWAY_DEVICE_RELATION_LOCK)
+                    .lockAtMostFor(Duration.ofMinutes(5))
+                    .lockAtLeastFor(Duration.ZERO)
+                    .waitForLock(Duration.ofSeconds(30))
+                    .build()).orElseThrow(() -> ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Gateway relation is being migrated").build());
+            try {
+                if (findGatewayEuiListValue() == null) {
+                    Map<String, List<String>> legacyRelation = getLegacyGatewayRelation();
+                    legacyRelation.forEach((gatewayEui, deviceEuiList) -> {
+                        ensureGatewayRelationEntity(gatewayEui);
+                        saveGatewayDevices(gatewayEui, deviceEuiList);
+                    });
+                    saveGatewayEuiList(new ArrayList<>(legacyRelation.keySet()));
+                    entityValueServiceProvider.saveLatestValues(ExchangePayload.create(Map.of(
+                            MsGwIntegrationEntities.GATEWAY_DEVICE_RELATION_KEY, "{}"
+                    )));
+                    log.info("Migrated gateway device relation of {} gateways", legacyRelation.size());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        migratedTenants.add(tenantId);
+    }
+
+    private Map<String, List<String>> getLegacyGatewayRelation() {
         try {
             AnnotatedEntityWrapper<MsGwIntegrationEntities> gatewayEntitiesWrapper = new AnnotatedEntityWrapper<>();
             String gatewayListStr = (String) gatewayEntitiesWrapper.getValue(MsGwIntegrationEntities::getGatewayDeviceRelation).orElse("{}");
-            return GatewayString.jsonInstance().readValue(gatewayListStr, new TypeReference<>() {});
+            return json.readValue(gatewayListStr, new TypeReference<LinkedHashMap<String, List<String>>>() {});
         } catch (Exception e) {
             throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Broken gateway list data").build();
         }
     }
 
     /**
-     * device mapping to gateway
+     * Gateways added before the relation was split do not have the relation entity yet.
      */
-    public Map<String, String> getDeviceGatewayRelation() {
-        return getGatewayRelation().entrySet().stream()
-                .flatMap(entry -> entry.getValue().stream().map(device -> Map.entry(device, entry.getKey())))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    private void ensureGatewayRelationEntity(String gatewayEui) {
+        Device gateway = deviceServiceProvider.findByIdentifier(GatewayString.getGatewayIdentifier(gatewayEui), Constants.INTEGRATION_ID);
+        if (gateway == null) {
+            return;
+        }
+
+        boolean relationEntityExists = gateway.getEntities() != null && gateway.getEntities().stream()
+                .anyMatch(entity -> GatewayEntities.DEVICE_RELATION_KEY.equals(entity.getIdentifier()));
+        if (relationEntityExists) {
+            return;
+        }
+
+        gateway.setEntities(new AnnotatedTemplateEntityBuilder(Constants.INTEGRATION_ID, gatewayEui).build(GatewayEntities.class));
+        deviceServiceProvider.save(gateway);
     }
 
     public String getDeviceModelRepoUrl() {
@@ -66,17 +232,6 @@ public class MsGwEntityService {
         return (String) repoUrl.get();
     }
 
-    public void saveGatewayRelation(Map<String, List<String>> gatewayRelation) {
-        try {
-            String relStr = json.writeValueAsString(gatewayRelation);
-            entityValueServiceProvider.saveLatestValues(ExchangePayload.create(Map.of(
-                    MsGwIntegrationEntities.GATEWAY_DEVICE_RELATION_KEY, relStr
-            )));
-        } catch (Exception e) {
-            throw ServiceException.with(ErrorCode.SERVER_ERROR.getErrorCode(), "Save relation error: " + e.getMessage()).build();
-        }
-    }
-
     public void saveDeviceModelData(DeviceModelData deviceModelData) {
         try {
             entityValueServiceProvider.saveLatestValues(ExchangePayload.create(Map.of(
@@ -104,11 +259,119 @@ public class MsGwEntityService {
                 .collect(Collectors.toMap(entry -> GatewayString.parseGatewayIdentifier(entry.getKey()), entry -> DeviceConnectStatus.valueOf((String) entry.getValue())));
     }
 
-    public String getDeviceDecoderScript(String deviceEui) {
-        return (String) entityValueServiceProvider.findValueByKey(GatewayString.getDeviceEntityKey(deviceEui, ResourceConstant.DECODER_ENTITY_IDENTIFIER));
+    public DeviceCodecHandle getDeviceDecoder(String deviceEui) {
+        return getDeviceCodec(deviceEui, ResourceConstant.DECODER_ENTITY_IDENTIFIER);
     }
 
-    public String getDeviceEncoderScript(String deviceEui) {
-        return (String) entityValueServiceProvider.findValueByKey(GatewayString.getDeviceEntityKey(deviceEui, ResourceConstant.ENCODER_ENTITY_IDENTIFIER));
+    public DeviceCodecHandle getDeviceEncoder(String deviceEui) {
+        return getDeviceCodec(deviceEui, ResourceConstant.ENCODER_ENTITY_IDENTIFIER);
+    }
+
+    private String getDeviceCodecCacheKey(String tenantId, String deviceEui, String codecIdentifier) {
+        return tenantId + ":" + deviceEui + ":" + codecIdentifier;
+    }
+
+    private DeviceCodecHandle getDeviceCodec(String deviceEui, String codecIdentifier) {
+        String cacheKey = getDeviceCodecCacheKey(TenantContext.getTenantId(), deviceEui, codecIdentifier);
+        DeviceCodecHandle codec = deviceCodecCache.get(cacheKey);
+        if (codec != null && !codec.isClosed()) {
+            return codec;
+        }
+
+        String script = (String) entityValueServiceProvider.findValueByKey(GatewayString.getDeviceEntityKey(deviceEui, codecIdentifier));
+        // native codecs only replace decoder scripts
+        String deviceModel = ResourceConstant.DECODER_ENTITY_IDENTIFIER.equals(codecIdentifier) ? findDeviceModel(deviceEui) : null;
+        codec = newCodecHandle(deviceModel, script);
+        if (codec == null) {
+            deviceCodecCache.remove(cacheKey);
+            return null;
+        }
+
+        deviceCodecCache.put(cacheKey, codec);
+        if (deviceCodecCache.size() > MAX_CACHED_DEVICE_CODECS) {
+            Iterator<String> iterator = deviceCodecCache.keySet().iterator();
+            while (deviceCodecCache.size() > MAX_CACHED_DEVICE_CODECS && iterator.hasNext()) {
+                String key = iterator.next();
+                if (!key.equals(cacheKey)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        return codec;
+    }
+
+    /**
+     * Bind the native codec of the model with the decoder script as its fallback, if the script decodes the samples of
+     * the native codec the same way. Other scripts are run as they are.
+     *
+     * @return null if there is no script
+     */
+    public DeviceCodecHandle newCodecHandle(String deviceModel, String script) {
+        if (!StringUtils.hasText(script)) {
+            return null;
+        }
+
+        CodecScript codecScript = CodecExecutor.compile(script);
+        DeviceCodec nativeCodec = nativeCodecEnabled ? DeviceCodecRegistry.get(deviceModel) : null;
+        if (nativeCodec != null && !DeviceCodecVerifier.verify(deviceModel, nativeCodec, codecScript)) {
+            nativeCodec = null;
+        }
+
+        return DeviceCodecHandle.of(deviceModel, nativeCodec, codecScript);
+    }
+
+    private String findDeviceModel(String deviceEui) {
+        if (!nativeCodecEnabled || DeviceCodecRegistry.isEmpty()) {
+            return null;
+        }
+
+        Device device = deviceServiceProvider.findByIdentifier(deviceEui, Constants.INTEGRATION_ID);
+        if (device == null || device.getAdditional() == null) {
+            return null;
+        }
+
+        return json.convertValue(device.getAdditional(), GatewayDeviceData.class).getDeviceModel();
+    }
+
+    /**
+     * Drop cached codecs of devices. Should be called after the decoder or encoder of a device was saved or deleted.
+     * Other nodes would be notified after the transaction committed.
+     */
+    public void invalidateDeviceCodec(List<String> deviceEuiList) {
+        if (ObjectUtils.isEmpty(deviceEuiList)) {
+            return;
+        }
+
+        String tenantId = TenantContext.getTenantId();
+        evictDeviceCodec(tenantId, deviceEuiList);
+        messagePubSub.publishAfterCommit(DeviceCodecInvalidateEvent.builder()
+                .tenantId(tenantId)
+                .deviceEuiList(deviceEuiList)
+                .build());
+    }
+
+    @MessageListener
+    public void onDeviceCodecInvalidate(DeviceCodecInvalidateEvent event) {
+        evictDeviceCodec(event.getTenantId(), event.getDeviceEuiList());
+    }
+
+    private void evictDeviceCodec(String tenantId, List<String> deviceEuiList) {
+        deviceEuiList.forEach(deviceEui -> {
+            deviceCodecCache.remove(getDeviceCodecCacheKey(tenantId, deviceEui, ResourceConstant.DECODER_ENTITY_IDENTIFIER));
+            deviceCodecCache.remove(getDeviceCodecCacheKey(tenantId, deviceEui, ResourceConstant.ENCODER_ENTITY_IDENTIFIER));
+        });
+    }
+
+    @Data
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class DeviceCodecInvalidateEvent extends RemoteBroadcastMessage {
+        private String tenantId;
+
+        private List<String> deviceEuiList;
     }
 }
@@ -0,0 +1,422 @@
+package com.milesight.beaveriot.integrations.milesightgateway.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.milesight.beaveriot.base.enums.ErrorCode;
+import com.milesight.beaveriot.base.exception.ServiceException;
+import com.milesight.beaveriot.context.integration.model.ExchangePayload;
+import com.milesight.beaveriot.context.security.TenantContext;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceCodecHandle;
+import com.milesight.beaveriot.integrations.milesightgateway.codec.EntityValueConverter;
+import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceCodecData;
+import com.milesight.beaveriot.integrations.milesightgateway.model.MilesightGatewayErrorCode;
+import com.milesight.beaveriot.integrations.milesightgateway.model.request.RedecodeRequest;
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.RedecodeJobResponse;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.ClusterNodeTracker;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwUplinkPipeline;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.UplinkArchive;
+import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
+import com.milesight.beaveriot.integrations.milesightgateway.util.TokenBucket;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.StringUtils;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RedecodeService class.
+ *
+ * Re-decodes archived uplink frames of a device model with its current decoder, so the history decoded by a broken
+ * decoder could be corrected after the codec repo is synced. Archive segments holding frames of the model's devices are
+ * split across a fork-join pool, each segment is scanned once for all the devices, and the values are saved as history
+ * records, a number of records per transaction.
+ * Frames are throttled by a token bucket of the job, and workers back off while live uplinks are queued.
+ * Frames are archived at their receive time, which is the time of their live history record, so the re-decoded values
+ * overwrite the values decoded live.
+ * <p>
+ * Single node only: uplinks are shared among the nodes of a cluster and each node archives the frames it received,
+ * so a job on one node would miss the others' frames. Jobs are rejected while other nodes are running.
+ * Jobs are kept in memory of the node running them.
+ *
+ * @author simon
+ * @date 2025/4/2
+ */
+@Component("milesightGatewayRedecodeService")
+@Slf4j
+public class RedecodeService {
+    public enum JobStatus {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED,
+    }
+
+    private static final long UPLINK_BACKOFF_NANOS = 100_000_000L;
+
+    private static final long FINISHED_JOB_KEEP_MILLIS = 24 * 60 * 60 * 1000L;
+
+    @Autowired
+    DeviceCodecService deviceCodecService;
+
+    @Autowired
+    DeviceService deviceService;
+
+    @Autowired
+    GatewayRelationIndex gatewayRelationIndex;
+
+    @Autowired
+    UplinkArchive uplinkArchive;
+
+    @Autowired
+    MsGwUplinkPipeline uplinkPipeline;
+
+    @Autowired
+    MsGwEntityService msGwEntityService;
+
+    @Autowired
+    ClusterNodeTracker clusterNodeTracker;
+
+    @Value("${milesight-gateway.redecode.parallelism:2}")
+    private int parallelism;
+
+    /**
+     * Frames decoded per second of each job, non-positive means unlimited.
+     */
+    @Value("${milesight-gateway.redecode.rate-per-second:500}")
+    private double ratePerSecond;
+
+    @Value("${milesight-gateway.redecode.records-per-transaction:500}")
+    private int recordsPerTransaction;
+
+    /**
+     * Workers pause while more live uplinks than this are queued.
+     */
+    @Value("${milesight-gateway.redecode.max-uplink-backlog:100}")
+    private int maxUplinkBacklog;
+
+    private volatile ForkJoinPool pool;
+
+    private final Map<String, RedecodeJob> jobMap = new ConcurrentHashMap<>();
+
+    private final ObjectMapper json = GatewayString.jsonInstance();
+
+    private class RedecodeJob {
+        private final String id = UUID.randomUUID().toString();
+
+        private final String tenantId;
+
+        private final String deviceModel;
+
+        private final long startTime;
+
+        private final long endTime;
+
+        private final List<String> deviceEuis;
+
+        private final List<Path> segments;
+
+        private final DeviceCodecHandle decoder;
+
+        private final TokenBucket tokenBucket = new TokenBucket(ratePerSecond, Math.max(1, ratePerSecond));
+
+        private final long createdAt = System.currentTimeMillis();
+
+        private final AtomicInteger processedSegments = new AtomicInteger();
+
+        private final AtomicLong scannedFrames = new AtomicLong();
+
+        private final AtomicLong decodedFrames = new AtomicLong();
+
+        private final AtomicLong failedFrames = new AtomicLong();
+
+        private final AtomicLong savedRecords = new AtomicLong();
+
+        private volatile JobStatus status = JobStatus.RUNNING;
+
+        private volatile boolean cancelled = false;
+
+        private volatile Long finishedAt;
+
+        private volatile String error;
+
+        RedecodeJob(String tenantId, String deviceModel, long startTime, long endTime, List<String> deviceEuis, List<Path> segments, DeviceCodecHandle decoder) {
+            this.tenantId = tenantId;
+            this.deviceModel = deviceModel;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.deviceEuis = deviceEuis;
+            this.segments = segments;
+            this.decoder = decoder;
+        }
+
+        void finish(JobStatus finalStatus, String finalError) {
+            error = finalError;
+            finishedAt = System.currentTimeMillis();
+            status = finalStatus;
+        }
+    }
+
+    /**
+     * Segments are split in halves until a task holds one segment.
+     */
+    private class SegmentTask extends RecursiveAction {
+        private final RedecodeJob job;
+
+        private final int from;
+
+        private final int to;
+
+        SegmentTask(RedecodeJob job, int from, int to) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to && !job.cancelled) {
+                    redecodeSegment(job, job.segments.get(from));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new SegmentTask(job, from, middle), new SegmentTask(job, middle, to));
+        }
+    }
+
+    private ForkJoinPool getPool() {
+        if (pool == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    AtomicInteger threadIndex = new AtomicInteger();
+                    pool = new ForkJoinPool(Math.max(1, parallelism), forkJoinPool -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                        thread.setName("msgw-redecode-" + threadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, null, false);
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    public RedecodeJobResponse startJob(RedecodeRequest request) {
+        if (!uplinkArchive.isEnabled()) {
+            throw ServiceException.with(MilesightGatewayErrorCode.UPLINK_ARCHIVE_DISABLED).build();
+        }
+
+        if (clusterNodeTracker.isClustered()) {
+            throw ServiceException.with(MilesightGatewayErrorCode.REDECODE_CLUSTER_UNSUPPORTED).build();
+        }
+
+        String deviceModel = request.getDeviceModel();
+        if (!StringUtils.hasText(deviceModel)) {
+            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "Device model is required").build();
+        }
+
+        DeviceCodecData codecData = deviceCodecService.batchGetDeviceCodecData(List.of(deviceModel)).get(deviceModel);
+        if (codecData == null || !StringUtils.hasText(codecData.getDecoderStr())) {
+            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "Cannot find decoder for: " + deviceModel).build();
+        }
+
+        long startTime = request.getStartTime() == null ? 0 : request.getStartTime();
+        long endTime = request.getEndTime() == null ? System.currentTimeMillis() : request.getEndTime();
+        if (startTime > endTime) {
+            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "Start time is after end time").build();
+        }
+
+        pruneFinishedJobs();
+        String tenantId = TenantContext.getTenantId();
+        List<String> deviceEuis = findModelDevices(deviceModel, request.getDeviceEuis());
+        List<Path> segments = deviceEuis.isEmpty() ? List.of() : uplinkArchive.findSegments(tenantId, new HashSet<>(deviceEuis), startTime, endTime);
+        RedecodeJob job = new RedecodeJob(tenantId, deviceModel, startTime, endTime, deviceEuis, segments, msGwEntityService.newCodecHandle(deviceModel, codecData.getDecoderStr()));
+        jobMap.put(job.id, job);
+        log.info("Re-decode job {} started: model {}, {} devices, {} segments, {} - {}", job.id, deviceModel, deviceEuis.size(), segments.size(), startTime, endTime);
+
+        getPool().execute(() -> {
+            try {
+                new SegmentTask(job, 0, job.segments.size()).invoke();
+                job.finish(job.cancelled ? JobStatus.CANCELLED : JobStatus.COMPLETED, null);
+            } catch (Exception e) {
+                log.error("Re-decode job " + job.id + " failed", e);
+                job.finish(JobStatus.FAILED, e.getMessage());
+            }
+
+            log.info("Re-decode job {} {}: {} frames decoded, {} failed, {} records saved", job.id, job.status, job.decodedFrames.get(), job.failedFrames.get(), job.savedRecords.get());
+        });
+
+        return toResponse(job);
+    }
+
+    private List<String> findModelDevices(String deviceModel, List<String> requestedEuis) {
+        List<String> euiList;
+        if (ObjectUtils.isEmpty(requestedEuis)) {
+            euiList = new ArrayList<>();
+            gatewayRelationIndex.getGatewayEuiList().forEach(gatewayEui -> {
+                List<String> gatewayDevices = gatewayRelationIndex.getGatewayDevices(gatewayEui);
+                if (gatewayDevices != null) {
+                    euiList.addAll(gatewayDevices);
+                }
+            });
+        } else {
+            euiList = requestedEuis.stream().map(GatewayString::standardizeEUI).distinct().toList();
+        }
+
+        if (euiList.isEmpty()) {
+            return List.of();
+        }
+
+        return deviceService.getDevices(euiList).stream()
+                .map(deviceService::getDeviceData)
+                .filter(deviceData -> deviceModel.equals(deviceData.getDeviceModel()))
+                .map(deviceData -> GatewayString.standardizeEUI(deviceData.getEui()))
+                .toList();
+    }
+
+    private void redecodeSegment(RedecodeJob job, Path segmentFile) {
+        // pool threads are shared by the jobs of all tenants
+        String previousTenantId = TenantContext.tryGetTenantId().orElse(null);
+        List<ExchangePayload> records = new ArrayList<>();
+        try {
+            TenantContext.setTenantId(job.tenantId);
+            uplinkArchive.scanSegment(segmentFile, new HashSet<>(job.deviceEuis), job.startTime, job.endTime, record -> {
+                if (job.cancelled) {
+                    throw new CancellationException();
+                }
+
+                throttle(job);
+                job.scannedFrames.incrementAndGet();
+                try {
+                    String decodeResult = job.decoder.decode(record.fPort(), record.data());
+                    String deviceKey = GatewayString.getDeviceKey(record.deviceEui());
+                    Map<String, Object> entityValueMap = EntityValueConverter.convertToEntityKeyMap(deviceKey, json.readTree(decodeResult));
+                    job.decodedFrames.incrementAndGet();
+                    if (ObjectUtils.isEmpty(entityValueMap)) {
+                        return;
+                    }
+
+                    ExchangePayload payload = ExchangePayload.create(entityValueMap);
+                    payload.setTimestamp(record.timestamp());
+                    records.add(payload);
+                } catch (Exception e) {
+                    job.failedFrames.incrementAndGet();
+                    log.debug("Re-decode frame of {} at {} failed: {}", record.deviceEui(), record.timestamp(), e.getMessage());
+                }
+
+                if (records.size() >= recordsPerTransaction) {
+                    saveRecords(job, records);
+                }
+            });
+
+            saveRecords(job, records);
+        } catch (CancellationException e) {
+            return;
+        } catch (Exception e) {
+            log.error("Re-decode segment {} failed: {}", segmentFile.getFileName(), e.getMessage());
+        } finally {
+            if (previousTenantId == null) {
+                TenantContext.clear();
+            } else {
+                TenantContext.setTenantId(previousTenantId);
+            }
+        }
+
+        job.processedSegments.incrementAndGet();
+    }
+
+    private void saveRecords(RedecodeJob job, List<ExchangePayload> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try {
+            deviceService.mergeHistoryRecords(records);
+            job.savedRecords.addAndGet(records.size());
+        } catch (Exception e) {
+            job.failedFrames.addAndGet(records.size());
+            log.error("Save re-decoded history failed: {}", e.getMessage());
+        }
+
+        records.clear();
+    }
+
+    private void throttle(RedecodeJob job) {
+        long waitNanos;
+        while ((waitNanos = job.tokenBucket.tryAcquire()) > 0) {
+            LockSupport.parkNanos(waitNanos);
+        }
+
+        // live uplinks go first
+        while (maxUplinkBacklog > 0 && uplinkPipeline.getQueueDepth() > maxUplinkBacklog && !job.cancelled) {
+            LockSupport.parkNanos(UPLINK_BACKOFF_NANOS);
+        }
+    }
+
+    private void pruneFinishedJobs() {
+        long expireBefore = System.currentTimeMillis() - FINISHED_JOB_KEEP_MILLIS;
+        jobMap.values().removeIf(job -> job.finishedAt != null && job.finishedAt < expireBefore);
+    }
+
+    private RedecodeJob getTenantJob(String jobId) {
+        RedecodeJob job = jobMap.get(jobId);
+        if (job == null || !job.tenantId.equals(TenantContext.getTenantId())) {
+            throw ServiceException.with(MilesightGatewayErrorCode.REDECODE_JOB_NOT_FOUND).build();
+        }
+
+        return job;
+    }
+
+    public RedecodeJobResponse getJob(String jobId) {
+        return toResponse(getTenantJob(jobId));
+    }
+
+    public List<RedecodeJobResponse> getJobs() {
+        String tenantId = TenantContext.getTenantId();
+        return jobMap.values().stream()
+                .filter(job -> job.tenantId.equals(tenantId))
+                .sorted(Comparator.comparingLong((RedecodeJob job) -> job.createdAt).reversed())
+                .map(this::toResponse)
+                .toList();
+    }
+
+    public RedecodeJobResponse cancelJob(String jobId) {
+        RedecodeJob job = getTenantJob(jobId);
+        job.cancelled = true;
+        return toResponse(job);
+    }
+
+    private RedecodeJobResponse toResponse(RedecodeJob job) {
+        RedecodeJobResponse response = new RedecodeJobResponse();
+        response.setJobId(job.id);
+        response.setStatus(job.status.name());
+        response.setDeviceModel(job.deviceModel);
+        response.setStartTime(job.startTime);
+        response.setEndTime(job.endTime);
+        response.setTotalDevices(job.deviceEuis.size());
+        response.setTotalSegments(job.segments.size());
+        response.setProcessedSegments(job.processedSegments.get());
+        response.setScannedFrames(job.scannedFrames.get());
+        response.setDecodedFrames(job.decodedFrames.get());
+        response.setFailedFrames(job.failedFrames.get());
+        response.setSavedRecords(job.savedRecords.get());
+        response.setCreatedAt(job.createdAt);
+        response.setFinishedAt(job.finishedAt);
+        response.setError(job.error);
+        return response;
+    }
+}
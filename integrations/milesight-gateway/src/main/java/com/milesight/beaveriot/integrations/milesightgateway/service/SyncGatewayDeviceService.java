@@ -8,15 +8,16 @@ import com.milesight.beaveriot.base.exception.ServiceException;
 import com.milesight.beaveriot.context.api.DeviceServiceProvider;
 import com.milesight.beaveriot.context.integration.model.Device;
 import com.milesight.beaveriot.context.integration.model.DeviceBuilder;
-import com.milesight.beaveriot.context.integration.wrapper.EntityWrapper;
 import com.milesight.beaveriot.integrations.milesightgateway.codec.DeviceHelper;
 import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceCodecData;
-import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceModelData;
+import com.milesight.beaveriot.integrations.milesightgateway.model.DeviceCodecIndex;
 import com.milesight.beaveriot.integrations.milesightgateway.model.GatewayDeviceData;
 import com.milesight.beaveriot.integrations.milesightgateway.model.GatewayDeviceOperation;
 import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListItemFields;
 import com.milesight.beaveriot.integrations.milesightgateway.model.request.SyncGatewayDeviceRequest;
 import com.milesight.beaveriot.integrations.milesightgateway.model.response.SyncDeviceListItem;
+import com.milesight.beaveriot.integrations.milesightgateway.model.response.SyncGatewayDeviceResponse;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.DeviceLastSeenTracker;
 import com.milesight.beaveriot.integrations.milesightgateway.util.Constants;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayRequester;
 import com.milesight.beaveriot.integrations.milesightgateway.util.GatewayString;
@@ -24,16 +25,14 @@ import com.milesight.beaveriot.integrations.milesightgateway.util.LockConstants;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
-
-import static com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttClient.GATEWAY_REQUEST_BATCH_SIZE;
+import java.util.concurrent.CompletionException;
 
 /**
  * SyncGatewayDeviceService class.
@@ -63,7 +62,16 @@ public class SyncGatewayDeviceService {
     MsGwEntityService msGwEntityService;
 
     @Autowired
-    TaskExecutor taskExecutor;
+    GatewayRelationIndex gatewayRelationIndex;
+
+    @Autowired
+    GatewayHealthCache gatewayHealthCache;
+
+    @Autowired
+    DeviceLastSeenTracker deviceLastSeenTracker;
+
+    @Value("${milesight-gateway.sync.save-chunk-size:100}")
+    private int saveChunkSize;
 
     private static final ObjectMapper json = GatewayString.jsonInstance();
 
@@ -80,20 +88,13 @@ public class SyncGatewayDeviceService {
             return List.of();
         }
 
-        List<String> existedDeviceEui = msGwEntityService.getGatewayRelation().get(gatewayEui);
+        List<String> existedDeviceEui = gatewayRelationIndex.getGatewayDevices(gatewayEui);
         Set<String> existedDeviceEuiSet = new HashSet<>();
         if (!ObjectUtils.isEmpty(existedDeviceEui)) {
             existedDeviceEuiSet.addAll(existedDeviceEui);
         }
 
-        DeviceModelData deviceModelData =  msGwEntityService.getDeviceModelData();
-        if (deviceModelData.getVendorInfoList() == null) {
-            throw ServiceException.with(ErrorCode.PARAMETER_VALIDATION_FAILED.getErrorCode(), "Please synchronize your codec repo first!").build();
-        }
-
-        Map<String, String> modelNameToId = deviceModelData.getVendorInfoList().stream()
-                .flatMap(vendorInfo -> vendorInfo.getDeviceInfoList().stream().map(deviceInfo -> new DeviceModelData.VendorDeviceInfo(vendorInfo, deviceInfo)))
-                .collect(Collectors.toMap(DeviceModelData.VendorDeviceInfo::getDeviceName, DeviceModelData::getDeviceModelId, (prev, cur) -> prev));
+        DeviceCodecIndex codecIndex = deviceCodecService.getDeviceCodecIndex();
 
         return deviceDataMap.stream()
                 .filter(deviceData -> {
@@ -106,7 +107,7 @@ public class SyncGatewayDeviceService {
                     item.setName((String) deviceData.get(DeviceListItemFields.NAME));
                     String codecName = (String) deviceData.get(DeviceListItemFields.PAYLOAD_NAME);
                     if (codecName != null) {
-                        item.setGuessModelId(modelNameToId.get(codecName));
+                        item.setGuessModelId(codecIndex.guessModelId(codecName));
                     }
                     return item;
                 })
@@ -115,60 +116,73 @@ public class SyncGatewayDeviceService {
 
     @Data
     private static class UpdateGatewayDeviceResponse {
+        String eui;
         GatewayDeviceData deviceData;
         String deviceName;
+        String error;
+    }
+
+    private record DeviceToSave(String eui, Device device, Map<String, Object> entityValues) {
     }
 
     @DistributedLock(name = LockConstants.SYNC_GATEWAY_DEVICE_LOCK)
-    public void syncGatewayDevice(String gatewayEui, SyncGatewayDeviceRequest request) {
+    public SyncGatewayDeviceResponse syncGatewayDevice(String gatewayEui, SyncGatewayDeviceRequest request) {
         // check connection of gateway. In case a large number of doomed-to-fail requests were sent.
-        gatewayRequester.requestDeviceList(gatewayEui, 0, 1, null);
+        gatewayHealthCache.ensureReachable(gatewayEui);
 
         Device gateway = gatewayService.getGatewayByEui(gatewayEui);
         String applicationId = gatewayService.getGatewayApplicationId(gateway);
+        SyncGatewayDeviceResponse result = new SyncGatewayDeviceResponse();
+
+        // batch reset device codec, requests are pipelined by the request window of the gateway
+        List<CompletableFuture<UpdateGatewayDeviceResponse>> futures = request.getDevices()
+                .stream()
+                .map(syncRequest -> gatewayService.doUpdateGatewayDeviceAsync(gatewayEui, syncRequest.getEui(), applicationId, Map.of(
+                        DeviceListItemFields.PAYLOAD_CODEC_ID, NONE_CODEC_ID,
+                        DeviceListItemFields.PAYLOAD_NAME, ""
+                )).handle((deviceItemData, e) -> {
+                    UpdateGatewayDeviceResponse response = new UpdateGatewayDeviceResponse();
+                    response.setEui(syncRequest.getEui());
+                    if (e != null) {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        response.setError(cause.getMessage());
+                        return response;
+                    }
 
-        // batch reset device codec
-        List<UpdateGatewayDeviceResponse> deviceItemList = new ArrayList<>();
-        int offset = 0;
-        while (offset < request.getDevices().size()) {
-            int end = Math.min(request.getDevices().size(), offset + GATEWAY_REQUEST_BATCH_SIZE);
-            List<CompletableFuture<UpdateGatewayDeviceResponse>> futures = request.getDevices()
-                    .subList(offset, end)
-                    .stream()
-                    .map(syncRequest -> CompletableFuture.supplyAsync(() -> {
-                        Map<String, Object> deviceItemData = gatewayService.doUpdateGatewayDevice(gatewayEui, syncRequest.getEui(), applicationId, Map.of(
-                                DeviceListItemFields.PAYLOAD_CODEC_ID, NONE_CODEC_ID,
-                                DeviceListItemFields.PAYLOAD_NAME, ""
-                        ));
-                        UpdateGatewayDeviceResponse response = new UpdateGatewayDeviceResponse();
-                        if (ObjectUtils.isEmpty(deviceItemData)) {
-                            return response;
-                        }
-
-                        response.setDeviceName((String) deviceItemData.get(DeviceListItemFields.NAME));
-                        GatewayDeviceData deviceData = new GatewayDeviceData();
-                        deviceData.setEui(syncRequest.getEui());
-                        deviceData.setGatewayEUI(gatewayEui);
-                        deviceData.setDeviceModel(syncRequest.getModelId());
-                        deviceData.setFPort(GatewayString.jsonInstance().convertValue(deviceItemData.get(DeviceListItemFields.F_PORT), Long.class));
-                        deviceData.setAppKey((String) deviceItemData.get(DeviceListItemFields.APP_KEY));
-                        deviceData.setFrameCounterValidation(!(Boolean) deviceItemData.get(DeviceListItemFields.SKIP_F_CNT_CHECK));
-                        response.setDeviceData(deviceData);
+                    if (ObjectUtils.isEmpty(deviceItemData) || !StringUtils.hasText((String) deviceItemData.get(DeviceListItemFields.NAME))) {
+                        response.setError("Device not found in gateway");
                         return response;
-                    }, taskExecutor)).toList();
-            List<UpdateGatewayDeviceResponse> responseList = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v ->
-                    futures.stream()
-                            .map(CompletableFuture::join)
-                            .filter(response -> StringUtils.hasText(response.getDeviceName()))
-                            .toList()).join();
-            deviceItemList.addAll(responseList);
-            offset = end;
+                    }
+
+                    response.setDeviceName((String) deviceItemData.get(DeviceListItemFields.NAME));
+                    GatewayDeviceData deviceData = new GatewayDeviceData();
+                    deviceData.setEui(syncRequest.getEui());
+                    deviceData.setGatewayEUI(gatewayEui);
+                    deviceData.setDeviceModel(syncRequest.getModelId());
+                    deviceData.setFPort(GatewayString.jsonInstance().convertValue(deviceItemData.get(DeviceListItemFields.F_PORT), Long.class));
+                    deviceData.setAppKey((String) deviceItemData.get(DeviceListItemFields.APP_KEY));
+                    deviceData.setFrameCounterValidation(!(Boolean) deviceItemData.get(DeviceListItemFields.SKIP_F_CNT_CHECK));
+                    response.setDeviceData(deviceData);
+                    return response;
+                })).toList();
+        List<UpdateGatewayDeviceResponse> deviceItemList = new ArrayList<>();
+        futures.stream().map(CompletableFuture::join).forEach(response -> {
+            if (response.getError() != null) {
+                result.addFailedDevice(response.getEui(), response.getError());
+            } else {
+                deviceItemList.add(response);
+            }
+        });
+
+        if (deviceItemList.isEmpty()) {
+            return result;
         }
 
         // get codecs
         Map<String, DeviceCodecData> deviceCodecDataMap = deviceCodecService.batchGetDeviceCodecData(deviceItemList.stream().map(updateGatewayDeviceResponse -> updateGatewayDeviceResponse.getDeviceData().getDeviceModel()).toList());
 
-        // save devices
+        // build devices
+        Map<String, DeviceToSave> deviceToSaveMap = new LinkedHashMap<>();
         deviceItemList.forEach(deviceItem -> {
             GatewayDeviceData deviceData = deviceItem.getDeviceData();
             Device device = new DeviceBuilder(Constants.INTEGRATION_ID)
@@ -177,14 +191,63 @@ public class SyncGatewayDeviceService {
                     .additional(json.convertValue(deviceData, new TypeReference<>() {}))
                     .build();
             DeviceCodecData codecData = deviceCodecDataMap.get(deviceData.getDeviceModel());
-            DeviceHelper.UpdateResourceResult updateResourceResult = DeviceHelper.updateResourceInfo(device, codecData.getDef());
-            // save device
-            deviceService.manageGatewayDevices(deviceData.getGatewayEUI(), deviceData.getEui(), GatewayDeviceOperation.ADD);
-            deviceServiceProvider.save(device);
-
-            // save script
-            new EntityWrapper(updateResourceResult.getDecoderEntity()).saveValue(codecData.getDecoderStr());
-            new EntityWrapper(updateResourceResult.getEncoderEntity()).saveValue(codecData.getEncoderStr());
+            DeviceHelper.UpdateResourceResult updateResourceResult = DeviceHelper.updateResourceInfo(device, codecData.getEntityTemplate(), deviceLastSeenTracker.isEnabled());
+            Map<String, Object> scriptValues = new HashMap<>();
+            scriptValues.put(updateResourceResult.getDecoderEntity().getKey(), codecData.getDecoderStr());
+            scriptValues.put(updateResourceResult.getEncoderEntity().getKey(), codecData.getEncoderStr());
+            deviceToSaveMap.put(deviceData.getEui(), new DeviceToSave(deviceData.getEui(), device, scriptValues));
+        });
+
+        // update the relation once
+        Set<String> addedDevices = new HashSet<>(deviceService.batchManageGatewayDevices(gatewayEui, new ArrayList<>(deviceToSaveMap.keySet()), GatewayDeviceOperation.ADD));
+        List<DeviceToSave> deviceToSaveList = new ArrayList<>();
+        deviceToSaveMap.values().forEach(deviceToSave -> {
+            if (addedDevices.contains(deviceToSave.eui())) {
+                deviceToSaveList.add(deviceToSave);
+            } else {
+                result.addFailedDevice(deviceToSave.eui(), "Duplicated device eui");
+            }
+        });
+
+        // save devices and scripts by chunks
+        List<String> failedToSave = new ArrayList<>();
+        for (int i = 0; i < deviceToSaveList.size(); i += saveChunkSize) {
+            List<DeviceToSave> chunk = deviceToSaveList.subList(i, Math.min(i + saveChunkSize, deviceToSaveList.size()));
+            saveDevices(chunk, result, failedToSave);
+        }
+
+        if (!failedToSave.isEmpty()) {
+            deviceService.batchManageGatewayDevices(gatewayEui, failedToSave, GatewayDeviceOperation.DELETE);
+        }
+
+        msGwEntityService.invalidateDeviceCodec(result.getSyncedDevices());
+        log.info("Synced {} devices of gateway {}, {} failed", result.getSyncedDevices().size(), gatewayEui, result.getFailedDevices().size());
+        return result;
+    }
+
+    /**
+     * Save the chunk in one transaction. If it failed, save devices one by one to find the failed devices.
+     */
+    private void saveDevices(List<DeviceToSave> chunk, SyncGatewayDeviceResponse result, List<String> failedToSave) {
+        Map<String, Object> entityValues = new HashMap<>();
+        chunk.forEach(deviceToSave -> entityValues.putAll(deviceToSave.entityValues()));
+        try {
+            deviceService.batchSaveDevices(chunk.stream().map(DeviceToSave::device).toList(), entityValues);
+            chunk.forEach(deviceToSave -> result.getSyncedDevices().add(deviceToSave.eui()));
+            return;
+        } catch (Exception e) {
+            log.warn("Save device chunk failed, retry one by one: " + e.getMessage());
+        }
+
+        chunk.forEach(deviceToSave -> {
+            try {
+                deviceService.batchSaveDevices(List.of(deviceToSave.device()), deviceToSave.entityValues());
+                result.getSyncedDevices().add(deviceToSave.eui());
+            } catch (Exception e) {
+                log.error("Save device " + deviceToSave.eui() + " failed: " + e.getMessage());
+                result.addFailedDevice(deviceToSave.eui(), e.getMessage());
+                failedToSave.add(deviceToSave.eui());
+            }
         });
     }
 }
@@ -3,11 +3,13 @@ package com.milesight.beaveriot.integrations.milesightgateway.util;
 import com.milesight.beaveriot.base.error.ErrorHolder;
 import com.milesight.beaveriot.base.exception.MultipleErrorException;
 import com.milesight.beaveriot.base.exception.ServiceException;
+import com.milesight.beaveriot.context.security.TenantContext;
 import com.milesight.beaveriot.integrations.milesightgateway.model.MilesightGatewayErrorCode;
 import com.milesight.beaveriot.integrations.milesightgateway.model.api.AddDeviceRequest;
 import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListItemFields;
 import com.milesight.beaveriot.integrations.milesightgateway.model.api.DeviceListResponse;
 import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttClient;
+import com.milesight.beaveriot.integrations.milesightgateway.mqtt.MsGwMqttUtil;
 import com.milesight.beaveriot.integrations.milesightgateway.mqtt.model.MqttRequest;
 import com.milesight.beaveriot.integrations.milesightgateway.mqtt.model.MqttResponse;
 import lombok.extern.slf4j.Slf4j;
@@ -18,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -44,9 +47,7 @@ public class GatewayRequester {
         return req;
     }
 
-    public MqttResponse<DeviceListResponse> requestDeviceList(String gatewayEui, int offset, int limit, String applicationId) {
-        MqttRequest req = buildDeviceListRequest(offset, limit, applicationId);
-        MqttResponse<DeviceListResponse> response = msGwMqttClient.request(gatewayEui, req, DeviceListResponse.class);
+    private static <T> MqttResponse<T> checkResponse(MqttResponse<T> response) {
         if (response.getErrorBody() != null) {
             throw ServiceException
                     .with(MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR)
@@ -57,22 +58,35 @@ public class GatewayRequester {
         return response;
     }
 
+    public MqttResponse<DeviceListResponse> requestDeviceList(String gatewayEui, int offset, int limit, String applicationId) {
+        return MsGwMqttUtil.join(requestDeviceListAsync(gatewayEui, offset, limit, applicationId));
+    }
+
+    public CompletableFuture<MqttResponse<DeviceListResponse>> requestDeviceListAsync(String gatewayEui, int offset, int limit, String applicationId) {
+        return requestDeviceListAsync(TenantContext.getTenantId(), gatewayEui, offset, limit, applicationId);
+    }
+
+    /**
+     * @param tenantId tenant of the gateway, so the request could be sent from any thread
+     */
+    public CompletableFuture<MqttResponse<DeviceListResponse>> requestDeviceListAsync(String tenantId, String gatewayEui, int offset, int limit, String applicationId) {
+        MqttRequest req = buildDeviceListRequest(offset, limit, applicationId);
+        return msGwMqttClient.requestAsync(tenantId, gatewayEui, req, DeviceListResponse.class).thenApply(GatewayRequester::checkResponse);
+    }
+
     public Optional<Map<String, Object>> requestDeviceItemByEui(String gatewayId, String deviceEui, String applicationId) {
+        return MsGwMqttUtil.join(requestDeviceItemByEuiAsync(gatewayId, deviceEui, applicationId));
+    }
+
+    public CompletableFuture<Optional<Map<String, Object>>> requestDeviceItemByEuiAsync(String gatewayId, String deviceEui, String applicationId) {
         MqttRequest req = new MqttRequest();
         req.setMethod("GET");
         req.setUrl("/api/urdevices?search=" + deviceEui + "&applicationID=" + applicationId);
-        MqttResponse<DeviceListResponse> response = msGwMqttClient.request(gatewayId, req, DeviceListResponse.class);
-        if (response.getErrorBody() != null) {
-            throw ServiceException
-                    .with(MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR)
-                    .args(response.getErrorBody().toMap())
-                    .build();
-        }
-
-        return response.getSuccessBody()
+        return msGwMqttClient.requestAsync(gatewayId, req, DeviceListResponse.class).thenApply(response -> checkResponse(response)
+                .getSuccessBody()
                 .getDeviceResult().stream()
                 .filter(item -> ((String) item.get(DeviceListItemFields.DEV_EUI)).equalsIgnoreCase(deviceEui))
-                .findFirst();
+                .findFirst());
     }
 
     /**
@@ -82,34 +96,37 @@ public class GatewayRequester {
      * @param itemData data must be from `requestDeviceItemByEui`
      */
     public void requestUpdateDeviceItem(String gatewayId, String deviceEui, Map<String, Object> itemData) {
+        MsGwMqttUtil.join(requestUpdateDeviceItemAsync(gatewayId, deviceEui, itemData));
+    }
+
+    public CompletableFuture<Void> requestUpdateDeviceItemAsync(String gatewayId, String deviceEui, Map<String, Object> itemData) {
         MqttRequest req = new MqttRequest();
         req.setMethod("PUT");
         req.setUrl("/api/urdevices/" + deviceEui);
         req.setBody(itemData);
-        MqttResponse<Void> response = msGwMqttClient.request(gatewayId, req, Void.class);
-        if (response.getErrorBody() != null) {
-            throw ServiceException
-                    .with(MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR)
-                    .args(response.getErrorBody().toMap())
-                    .build();
-        }
+        return msGwMqttClient.requestAsync(gatewayId, req, Void.class).thenAccept(GatewayRequester::checkResponse);
     }
 
     public void requestAddDevice(String gatewayId, AddDeviceRequest requestData) {
+        MsGwMqttUtil.join(requestAddDeviceAsync(gatewayId, requestData));
+    }
+
+    public CompletableFuture<Void> requestAddDeviceAsync(String gatewayId, AddDeviceRequest requestData) {
         MqttRequest req = new MqttRequest();
         req.setMethod("POST");
         req.setUrl("/api/urdevices");
         req.setBody(GatewayString.convertToMap(requestData));
-        MqttResponse<Void> response = msGwMqttClient.request(gatewayId, req, null);
-        if (response.getErrorBody() != null) {
-            throw ServiceException
-                    .with(MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR)
-                    .args(response.getErrorBody().toMap())
-                    .build();
-        }
+        return msGwMqttClient.<Void>requestAsync(gatewayId, req, null).thenAccept(GatewayRequester::checkResponse);
     }
 
     public void requestDeleteDevice(String gatewayEui, List<String> deviceEuiList) {
+        MsGwMqttUtil.join(requestDeleteDeviceAsync(TenantContext.getTenantId(), gatewayEui, deviceEuiList));
+    }
+
+    /**
+     * @param tenantId tenant of the gateway, so the request could be sent from any thread
+     */
+    public CompletableFuture<Void> requestDeleteDeviceAsync(String tenantId, String gatewayEui, List<String> deviceEuiList) {
         List<MqttRequest> reqList = deviceEuiList.stream().map(deviceEui -> {
             MqttRequest req = new MqttRequest();
             req.setMethod("DELETE");
@@ -117,29 +134,30 @@ public class GatewayRequester {
             return req;
         }).toList();
 
-        List<MqttResponse<Void>> responses = msGwMqttClient.batchRequest(gatewayEui, reqList, Void.class);
-        List<Map<String, Object>> errors = new ArrayList<>();
-        responses.forEach(response -> {
-            if (response.getErrorBody() != null) {
-                if (response.getErrorBody().getCode().equals(5)) {
-                    // The device has been removed from gateway
-                    log.warn(response.getUrl() + " did not exists in gateway " + response.getGatewayEUI());
-                    return;
+        return msGwMqttClient.batchRequestAsync(tenantId, gatewayEui, reqList, Void.class).thenAccept(responses -> {
+            List<Map<String, Object>> errors = new ArrayList<>();
+            responses.forEach(response -> {
+                if (response.getErrorBody() != null) {
+                    if (response.getErrorBody().getCode().equals(5)) {
+                        // The device has been removed from gateway
+                        log.warn(response.getUrl() + " did not exists in gateway " + response.getGatewayEUI());
+                        return;
+                    }
+
+                    errors.add(response.getErrorBody().toMap());
                 }
-
-                errors.add(response.getErrorBody().toMap());
+            });
+
+            if (!errors.isEmpty()) {
+                throw MultipleErrorException.with(
+                        MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR.getErrorMessage(),
+                        ErrorHolder.of(errors.stream().map(error -> ServiceException
+                                .with(MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR)
+                                .args(error)
+                                .build()).collect(Collectors.toList()))
+                );
             }
         });
-
-        if (!errors.isEmpty()) {
-            throw MultipleErrorException.with(
-                    MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR.getErrorMessage(),
-                    ErrorHolder.of(errors.stream().map(error -> ServiceException
-                            .with(MilesightGatewayErrorCode.GATEWAY_RESPOND_ERROR)
-                            .args(error)
-                            .build()).collect(Collectors.toList()))
-            );
-        }
     }
 
     private static final int DEVICE_GET_BATCH_SIZE = 50;
@@ -53,6 +53,10 @@ public class GatewayString {
         return Constants.INTEGRATION_ID + "." + "device" + "." + gatewayIdentifier + "." + GatewayEntities.STATUS_KEY;
     }
 
+    public static String getGatewayDeviceRelationKey(String gatewayEui) {
+        return getGatewayKey(gatewayEui) + "." + GatewayEntities.DEVICE_RELATION_KEY;
+    }
+
     public static String parseGatewayIdentifier(String key) {
         return key.split("\\.")[2];
     }
@@ -17,5 +17,9 @@ public class LockConstants {
 
     public static final String SYNC_GATEWAY_DEVICE_LOCK = "sync-gateway-device-lock";
 
+    public static final String UPDATE_GATEWAY_DEVICES_LOCK_PREFIX = "update-gateway-devices-lock-prefix";
+
+    public static final String MIGRATE_GATEWAY_DEVICE_RELATION_LOCK = "migrate-gateway-device-relation-lock";
+
     public static final String UPDATE_GATEWAY_STATUS_LOCK_PREFIX = "update-gateway-status-lock-prefix";
 }
@@ -0,0 +1,49 @@
+package com.milesight.beaveriot.integrations.milesightgateway.util;
+
+/**
+ * TokenBucket class.
+ *
+ * Tokens are refilled continuously at the rate, up to the capacity. A non-positive rate means unlimited.
+ *
+ * @author simon
+ * @date 2025/3/31
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final double tokensPerNano;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.tokensPerNano = ratePerSecond / NANOS_PER_SECOND;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Take a token if available.
+     *
+     * @return 0 if the token was taken, otherwise nanoseconds to wait for the next token
+     */
+    public synchronized long tryAcquire() {
+        if (tokensPerNano <= 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+}
@@ -89,4 +89,48 @@ class ConvertTest extends Specification {
         then:
         println(result)
     }
+
+    def "test json to entity map matches golden file"() {
+        given:
+        def jsonNode = ResourceString.jsonInstance().readTree(new File(getClass().getResource("/downlink.json").toURI()))
+        def golden = ResourceString.jsonInstance().readTree(new File(getClass().getResource("/downlink-entity-map.json").toURI()))
+
+        when:
+        def result = EntityValueConverter.convertToEntityKeyMap("integration-id.device.device-key", jsonNode)
+
+        then:
+        ResourceString.jsonInstance().valueToTree(result) == golden
+    }
+
+    def "test entity map to json matches golden file"() {
+        given:
+        def golden = ResourceString.jsonInstance().readTree(new File(getClass().getResource("/downlink-entity-map.json").toURI()))
+        def entityMap = ResourceString.jsonInstance().convertValue(golden, Map.class)
+        def sampleJson = ResourceString.jsonInstance().readTree(new File(getClass().getResource("/downlink.json").toURI()))
+
+        when:
+        def result = EntityValueConverter.convertToJson("integration-id.device.device-key", entityMap)
+
+        then:
+        result == sampleJson
+        EntityValueConverter.convertToJson("integration-id.device.device-key", getSampleJsonMap()) == sampleJson
+    }
+
+    def "test entity key path tokens"() {
+        when:
+        def root = ResourceString.jsonInstance().createObjectNode()
+        EntityKeyPath.compile(key).put(root, ResourceString.jsonInstance().valueToTree(1))
+
+        then:
+        EntityKeyPath.compile(key).toString() == path
+        root == ResourceString.jsonInstance().readTree(expected)
+
+        where:
+        key                        | path                       | expected
+        "int_field"                | "int_field"                | '{"int_field":1}'
+        "plain_array.[2]"          | "plain_array[2]"           | '{"plain_array":[null,null,1]}'
+        "struct.arg3[1]"           | "struct.arg3[1]"           | '{"struct":{"arg3":[null,1]}}'
+        "struct.arg4[0]#arg2#arg1" | "struct.arg4[0].arg2.arg1" | '{"struct":{"arg4":[{"arg2":{"arg1":1}}]}}'
+        "struct.name[x]"           | "struct.name[x]"           | '{"struct":{"name[x]":1}}'
+    }
 }
@@ -0,0 +1,74 @@
+package com.milesight.beaveriot.integrations.milesightgateway.codec
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.milesight.beaveriot.integrations.milesightgateway.codec.device.Em300ThCodec
+import spock.lang.Specification
+
+import java.util.HexFormat
+
+class DeviceCodecParityTest extends Specification {
+    private static final Comparator<JsonNode> NUMERIC_COMPARATOR = { JsonNode a, JsonNode b ->
+        if (a.isNumber() && b.isNumber()) {
+            return Double.compare(a.doubleValue(), b.doubleValue())
+        }
+
+        return a.equals(b) ? 0 : 1
+    } as Comparator<JsonNode>
+
+    private static String loadResource(String name) {
+        return new File(DeviceCodecParityTest.getResource(name).toURI()).getText("UTF-8")
+    }
+
+    private static List<Map<String, Object>> loadFrames(String name) {
+        return ResourceString.jsonInstance().readValue(loadResource(name), List.class)
+    }
+
+    def "test native codec is discovered by model id"() {
+        expect:
+        DeviceCodecRegistry.get("em300-th@milesight") instanceof Em300ThCodec
+        DeviceCodecRegistry.get("unknown@milesight") == null
+    }
+
+    def "test native codec replaces a script decoding its samples the same way"() {
+        given:
+        def script = loadResource("/em300-th-decoder.js")
+
+        expect:
+        DeviceCodecVerifier.verify("em300-th@milesight", new Em300ThCodec(), CodecExecutor.compile(script))
+        !DeviceCodecVerifier.verify("em300-th@milesight", new Em300ThCodec(), CodecExecutor.compile(script.replace("decoded.humidity = bytes[i] / 2;", "decoded.humidity = bytes[i];")))
+        !DeviceCodecVerifier.verify("em300-th@milesight", new Em300ThCodec(), CodecExecutor.compile("function Encode(fPort, obj) { return []; }"))
+    }
+
+    def "test native decoder matches script decoder"() {
+        given:
+        def script = CodecExecutor.compile(loadResource("/em300-th-decoder.js"))
+        def nativeCodec = new Em300ThCodec()
+        def data = HexFormat.of().parseHex(frame.hex as String)
+
+        when:
+        def expected = ResourceString.jsonInstance().readTree(CodecExecutor.runDecode(script, frame.fPort as Integer, data))
+        def actual = nativeCodec.decode(frame.fPort as Integer, data)
+
+        then:
+        expected.equals(NUMERIC_COMPARATOR, actual)
+
+        where:
+        frame << loadFrames("/em300-th-frames.json")
+    }
+
+    def "test handle falls back to script"() {
+        given:
+        def script = CodecExecutor.compile(loadResource("/em300-th-decoder.js"))
+        def failingCodec = Stub(DeviceCodec) {
+            decode(_, _) >> { throw new IllegalStateException("broken") }
+        }
+        def data = HexFormat.of().parseHex("0367f80004686e")
+
+        when:
+        def result = ResourceString.jsonInstance().readTree(DeviceCodecHandle.of("em300-th@milesight", failingCodec, script).decode(85, data))
+
+        then:
+        result.get("temperature").doubleValue() == 24.8d
+        result.get("humidity").intValue() == 55
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * EM300-TH decoder, used as the reference of the native decoder.
+ * Hand-written after the channels of the EM300-TH decoder in the Milesight codec repo, not a copy of that script.
+ */
+function Decode(fPort, bytes) {
+    return milesightDeviceDecode(bytes);
+}
+
+function milesightDeviceDecode(bytes) {
+    var decoded = {};
+
+    for (var i = 0; i < bytes.length; ) {
+        var channel_id = bytes[i++];
+        var channel_type = bytes[i++];
+
+        // IPSO VERSION
+        if (channel_id === 0xff && channel_type === 0x01) {
+            decoded.ipso_version = readProtocolVersion(bytes[i]);
+            i += 1;
+        }
+        // HARDWARE VERSION
+        else if (channel_id === 0xff && channel_type === 0x09) {
+            decoded.hardware_version = "v" + (bytes[i] & 0xff) + "." + ((bytes[i + 1] & 0xff) >> 4);
+            i += 2;
+        }
+        // FIRMWARE VERSION
+        else if (channel_id === 0xff && channel_type === 0x0a) {
+            decoded.firmware_version = "v" + (bytes[i] & 0xff) + "." + (bytes[i + 1] & 0xff);
+            i += 2;
+        }
+        // DEVICE STATUS
+        else if (channel_id === 0xff && channel_type === 0x0b) {
+            decoded.device_status = "on";
+            i += 1;
+        }
+        // LORAWAN CLASS
+        else if (channel_id === 0xff && channel_type === 0x0f) {
+            decoded.lorawan_class = readLoRaWANClass(bytes[i]);
+            i += 1;
+        }
+        // SERIAL NUMBER
+        else if (channel_id === 0xff && channel_type === 0x16) {
+            decoded.sn = readSerialNumber(bytes, i, 8);
+            i += 8;
+        }
+        // BATTERY
+        else if (channel_id === 0x01 && channel_type === 0x75) {
+            decoded.battery = bytes[i];
+            i += 1;
+        }
+        // TEMPERATURE
+        else if (channel_id === 0x03 && channel_type === 0x67) {
+            decoded.temperature = readInt16LE(bytes, i) / 10;
+            i += 2;
+        }
+        // HUMIDITY
+        else if (channel_id === 0x04 && channel_type === 0x68) {
+            decoded.humidity = bytes[i] / 2;
+            i += 1;
+        } else {
+            break;
+        }
+    }
+
+    return decoded;
+}
+
+function readProtocolVersion(value) {
+    var major = (value & 0xf0) >> 4;
+    var minor = value & 0x0f;
+    return "v" + major + "." + minor;
+}
+
+function readLoRaWANClass(type) {
+    var classes = ["Class A", "Class B", "Class C", "Class CB"];
+    return type < classes.length ? classes[type] : "unknown";
+}
+
+function readSerialNumber(bytes, offset, length) {
+    var temp = [];
+    for (var idx = offset; idx < offset + length; idx++) {
+        temp.push(("0" + (bytes[idx] & 0xff).toString(16)).slice(-2));
+    }
+    return temp.join("");
+}
+
+function readInt16LE(bytes, offset) {
+    var value = (bytes[offset + 1] << 8) + bytes[offset];
+    return value > 0x7fff ? value - 0x10000 : value;
+}